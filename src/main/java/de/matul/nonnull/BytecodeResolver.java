@@ -0,0 +1,341 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import nonnull.Nullable;
+
+import org.objectweb.asm.ClassReader;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
+
+/**
+ * This resolves method parameters, results and fields at transformation time
+ * by reading the annotations directly from the class files. No class is loaded
+ * for that purpose.
+ *
+ * The resolution follows the same rules as {@link NonNullResolver}: An
+ * annotation on the method overrides the annotation on the class which
+ * overrides the annotation found in the superclasses and interfaces, the
+ * package annotation comes last.
+ *
+ * If a class file cannot be found, the result is null ("unknown") and the
+ * check must be resolved at runtime.
+ *
+ * A resolver is used for the transformation of a single class only, such that
+ * the cache is not kept beyond that.
+ */
+final class BytecodeResolver {
+
+    private static final String PACKAGE_INFO = "package-info";
+
+    /**
+     * The loader to read class files from, null for the bootstrap loader
+     */
+    private final @Nullable ClassLoader loader;
+
+    /**
+     * Summaries of the classes read so far. Maps to null if the class file is
+     * not available.
+     */
+    private final Map<String, ClassNullness> classes = new HashMap<>();
+
+    /**
+     * Annotations of the packages read so far.
+     */
+    private final Map<String, AnnotationType> packages = new HashMap<>();
+
+    /**
+     * If not null, the hashes of all class files read are recorded here
+     * (see {@link InstrumentationCache}).
+     */
+    @Nullable Map<String, String> dependencies;
+
+    /**
+     * The class under transformation. Its summary is only read when needed.
+     */
+    private final ClassReader current;
+
+    /**
+     * Instantiates a new resolver for the transformation of one class.
+     *
+     * @param loader
+     *            the defining loader of the class under transformation
+     * @param current
+     *            the class under transformation
+     */
+    BytecodeResolver(@Nullable ClassLoader loader, ClassReader current) {
+        this.loader = loader;
+        this.current = current;
+    }
+
+    /**
+     * @return the defining loader of the class under transformation, null
+     *         for the bootstrap loader
+     */
+    @Nullable ClassLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * Resolve the annotation of a method parameter or method result.
+     *
+     * @param className
+     *            the internal name of the declaring class
+     * @param methodName
+     *            the name of the method
+     * @param methodDesc
+     *            the descriptor of the method
+     * @param param
+     *            the number of the parameter, -1 for the result
+     * @return the annotation, null if it cannot be determined
+     */
+    @Nullable AnnotationType resolveMethod(String className, String methodName,
+            String methodDesc, int param) {
+
+        ClassNullness cn = lookup(className);
+        if(cn == null) {
+            return null;
+        }
+
+        AnnotationType[] method = cn.getMethod(methodName, methodDesc);
+        if(method == null) {
+            return AnnotationType.NONE;
+        }
+
+        if(method[param + 1] != AnnotationType.NONE) {
+            return method[param + 1];
+        }
+
+        if(cn.classAnnotation != AnnotationType.NONE) {
+            return cn.classAnnotation;
+        }
+
+        if(cn.superName != null) {
+            AnnotationType superAnn =
+                    resolveMethod(cn.superName, methodName, methodDesc, param);
+            if(superAnn != AnnotationType.NONE) {
+                return superAnn;
+            }
+        }
+
+        for (String intf : cn.interfaces) {
+            AnnotationType superAnn =
+                    resolveMethod(intf, methodName, methodDesc, param);
+            if(superAnn != AnnotationType.NONE) {
+                return superAnn;
+            }
+        }
+
+        return lookupPackage(className);
+    }
+
+    /**
+     * Resolve the annotation of a field.
+     *
+     * @param owner
+     *            the internal name of the class through which the field is
+     *            accessed
+     * @param fieldName
+     *            the name of the field
+     * @return the annotation, null if it cannot be determined
+     */
+    @Nullable AnnotationType resolveField(String owner, String fieldName) {
+
+        ClassNullness cn = lookup(owner);
+        if(cn == null) {
+            return null;
+        }
+
+        AnnotationType classAnn = cn.classAnnotation;
+        AnnotationType ann = null;
+        while(ann == null) {
+            ann = cn.getField(fieldName);
+            if(ann == null && cn.unannotated) {
+                ann = AnnotationType.NONE;
+            }
+            if(ann == null) {
+                if(cn.superName == null) {
+                    // unknown field: leave the complaint to the runtime
+                    return null;
+                }
+                cn = lookup(cn.superName);
+                if(cn == null) {
+                    return null;
+                }
+            }
+        }
+
+        if(ann == AnnotationType.NONE) {
+            ann = classAnn;
+        }
+
+        return ann;
+    }
+
+    /**
+     * Find the class declaring a field among the class through which it is
+     * accessed and its superclasses.
+     *
+     * @param owner
+     *            the internal name of the class through which the field is
+     *            accessed
+     * @param fieldName
+     *            the name of the field
+     * @return the internal name of the declaring class, null if it cannot be
+     *         determined
+     */
+    @Nullable String declaringClass(String owner, String fieldName) {
+        ClassNullness cn = lookup(owner);
+        while(cn != null) {
+            if(cn.unannotated || cn.getField(fieldName) != null) {
+                // the fields of unannotated classes are not known
+                return cn.unannotated ? null : cn.name;
+            }
+            if(cn.superName == null) {
+                return null;
+            }
+            cn = lookup(cn.superName);
+        }
+        return null;
+    }
+
+    /**
+     * Check whether a class, its superclasses, its interfaces or their
+     * packages carry non-null annotations which may be inherited or which may
+     * apply to its fields. Unknown classes may carry annotations.
+     *
+     * @param className
+     *            the internal name of the class, may be null
+     * @return false if no non-null check can stem from the class
+     */
+    boolean mayInheritNonNull(@Nullable String className) {
+        if(className == null) {
+            return false;
+        }
+
+        ClassNullness cn = lookup(className);
+        if(cn == null) {
+            return true;
+        }
+
+        if(cn.unannotated) {
+            return false;
+        }
+
+        if(cn.mentionsNonNull() || isNonNull(lookupPackage(className))) {
+            return true;
+        }
+
+        if(mayInheritNonNull(cn.superName)) {
+            return true;
+        }
+
+        for (String intf : cn.interfaces) {
+            if(mayInheritNonNull(intf)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether the package of a class is annotated non-null.
+     *
+     * @param className
+     *            the internal name of the class
+     * @return true if package-info carries a (deep) non-null annotation
+     */
+    boolean isPackageNonNull(String className) {
+        return isNonNull(lookupPackage(className));
+    }
+
+    private static boolean isNonNull(AnnotationType type) {
+        return type == AnnotationType.NON_NULL || type == AnnotationType.DEEP_NON_NULL;
+    }
+
+    /*
+     * Classes from the java.* packages are not annotated. This saves reading
+     * java/lang/Object for every class.
+     */
+    private @Nullable ClassNullness lookup(String className) {
+        if(classes.containsKey(className)) {
+            return classes.get(className);
+        }
+
+        ClassNullness result = null;
+        if(className.equals(current.getClassName())) {
+            result = ClassNullness.read(current);
+        } else if(className.startsWith("java/")) {
+            result = ClassNullness.unannotated(className);
+        } else {
+            byte[] bytes = readClassFile(className);
+            if(bytes != null) {
+                result = ClassNullness.read(new ClassReader(bytes));
+            }
+        }
+        classes.put(className, result);
+        return result;
+    }
+
+    private AnnotationType lookupPackage(String className) {
+        int slash = className.lastIndexOf('/');
+        String pack = slash < 0 ? "" : className.substring(0, slash + 1);
+
+        AnnotationType result = packages.get(pack);
+        if(result == null) {
+            byte[] bytes = readClassFile(pack + PACKAGE_INFO);
+            if(bytes == null) {
+                result = AnnotationType.NONE;
+            } else {
+                result = ClassNullness.read(new ClassReader(bytes)).classAnnotation;
+            }
+            packages.put(pack, result);
+        }
+        return result;
+    }
+
+    private @Nullable byte[] readClassFile(String className) {
+        String resource = className + ".class";
+        byte[] result = readResource(loader, resource);
+        if(dependencies != null) {
+            dependencies.put(resource, result == null ?
+                    InstrumentationCache.MISSING : InstrumentationCache.digest(result));
+        }
+        return result;
+    }
+
+    /**
+     * Read a resource from a class loader.
+     *
+     * @param loader
+     *            the loader to read from, null for the bootstrap loader
+     * @param resource
+     *            the name of the resource
+     * @return the content, null if the resource cannot be read
+     */
+    static @Nullable byte[] readResource(@Nullable ClassLoader loader, String resource) {
+        try(InputStream is = loader != null ?
+                loader.getResourceAsStream(resource) :
+                ClassLoader.getSystemResourceAsStream(resource)) {
+            if(is == null) {
+                NonNullAgent.debug("Class file not found: %s", resource);
+                return null;
+            }
+            return Util.drainStream(is);
+        } catch (IOException e) {
+            NonNullAgent.debug("Cannot read class file %s: %s", resource, e);
+            return null;
+        }
+    }
+}
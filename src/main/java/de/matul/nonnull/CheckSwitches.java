@@ -0,0 +1,232 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.SwitchPoint;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import nonnull.NoNullnessChecks;
+import nonnull.Nullable;
+
+/**
+ * The switches which turn checks off and on again without retransforming
+ * classes. There is one global switch and one switch per package. The
+ * package of a site is the package of the class declaring the checked
+ * method or field.
+ *
+ * Invokedynamic sites are guarded by the {@link SwitchPoint}s of their
+ * switches. Turning a switch off invalidates its switch point such that the
+ * compiled code of the sites is thrown away and the sites do nothing. Turning
+ * it on again creates a new switch point and relinks the sites. Legacy sites
+ * test the switches on every execution.
+ *
+ * Switches can be set using the java agent arguments "DISABLE", "ENABLE",
+ * "DISABLE=package" and "ENABLE=package" (also when attaching to a running
+ * VM) and using the MBean {@value #OBJECT_NAME}. The MBean is registered
+ * once a switch is set or if {@link NonNullAgent#SWITCHES} is set.
+ */
+@NoNullnessChecks
+final class CheckSwitches implements CheckSwitchesMXBean {
+
+    static final String OBJECT_NAME = "de.matul.nonnull:type=CheckSwitches";
+
+    /**
+     * A site which can be relinked once a switch is turned on again.
+     */
+    interface Site {
+        void link();
+    }
+
+    /**
+     * A switch for the global or a package.
+     */
+    static final class Switch {
+        private final String name;
+        private volatile boolean disabled;
+        private volatile SwitchPoint switchPoint = new SwitchPoint();
+        /**
+         * the invokedynamic sites guarded by this switch, weakly referenced;
+         * only accessed while holding its own lock
+         */
+        private final Set<Site> sites = Collections.newSetFromMap(new WeakHashMap<>());
+
+        private Switch(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final Switch global = new Switch("");
+
+    /**
+     * The switches per package (in internal form).
+     */
+    private static final Map<String, Switch> packages = new ConcurrentHashMap<>();
+
+    private static final AtomicBoolean registered = new AtomicBoolean();
+
+    private CheckSwitches() {
+        // only the MBean instance
+    }
+
+    /**
+     * Register the MBean with the platform MBean server, if not already done.
+     * If the agent classes are loaded by more than one loader, only the
+     * switches of the first one are published.
+     */
+    static void register() {
+        if(!registered.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new CheckSwitches(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            NonNullAgent.debug("The non-null switches of another loader are registered");
+        } catch (JMException e) {
+            System.err.println("Cannot register the non-null switches: " + e);
+        }
+    }
+
+    /**
+     * Get the switch for the package of a class.
+     *
+     * @param classDesc
+     *            the internal name of the class
+     * @return the switch for its package
+     */
+    static Switch forClass(String classDesc) {
+        int slash = classDesc.lastIndexOf('/');
+        String pack = slash < 0 ? "" : classDesc.substring(0, slash);
+        return packages.computeIfAbsent(pack, Switch::new);
+    }
+
+    /**
+     * Check whether checks are enabled for a package.
+     *
+     * @param packageSwitch
+     *            the switch of the package
+     * @return true if neither the global nor the package switch is off
+     */
+    static boolean isEnabled(Switch packageSwitch) {
+        return !global.disabled && !packageSwitch.disabled;
+    }
+
+    /**
+     * Guard the target of an invokedynamic site by the global and the package
+     * switch.
+     *
+     * Only the registration of the site is done under the lock of the package
+     * switch. Since the site is registered before the switch points are read,
+     * a switch turned on again in the meantime either relinks the site or has
+     * already replaced the switch point read here.
+     *
+     * @param packageSwitch
+     *            the switch of the package
+     * @param site
+     *            the site to relink once a switch is turned on again
+     * @param target
+     *            the target if checks are enabled
+     * @param fallback
+     *            the target if checks are disabled
+     * @return the guarded target
+     */
+    static MethodHandle guard(Switch packageSwitch, Site site,
+            MethodHandle target, MethodHandle fallback) {
+        synchronized (packageSwitch.sites) {
+            packageSwitch.sites.add(site);
+        }
+        MethodHandle result = packageSwitch.switchPoint.guardWithTest(target, fallback);
+        return global.switchPoint.guardWithTest(result, fallback);
+    }
+
+    /**
+     * Turn a switch off or on.
+     *
+     * @param pack
+     *            the package in internal or dotted form, null for the global
+     *            switch
+     * @param enabled
+     *            whether checks are to be enabled
+     */
+    static void setEnabled(@Nullable String pack, boolean enabled) {
+        register();
+        List<Site> relink = new ArrayList<>();
+        synchronized (CheckSwitches.class) {
+            Switch sw = pack == null ? global : packages.computeIfAbsent(
+                    pack.replace('.', '/'), Switch::new);
+            if(sw.disabled == !enabled) {
+                return;
+            }
+            sw.disabled = !enabled;
+            if(!enabled) {
+                SwitchPoint.invalidateAll(new SwitchPoint[] { sw.switchPoint });
+            } else {
+                sw.switchPoint = new SwitchPoint();
+                for (Switch packageSwitch : sw == global ? packages.values() :
+                        Collections.singleton(sw)) {
+                    synchronized (packageSwitch.sites) {
+                        relink.addAll(packageSwitch.sites);
+                    }
+                }
+            }
+        }
+
+        NonNullAgent.debug("Checks %s for %s", enabled ? "enabled" : "disabled",
+                pack == null ? "all packages" : pack);
+
+        // outside the lock, linking calls guard()
+        for (Site site : relink) {
+            site.link();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return !global.disabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        setEnabled(null, enabled);
+    }
+
+    @Override
+    public void disablePackage(String pack) {
+        setEnabled(pack, false);
+    }
+
+    @Override
+    public void enablePackage(String pack) {
+        setEnabled(pack, true);
+    }
+
+    @Override
+    public List<String> getDisabledPackages() {
+        List<String> result = new ArrayList<>();
+        for (Switch sw : packages.values()) {
+            if(sw.disabled) {
+                result.add(sw.name.replace('/', '.'));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
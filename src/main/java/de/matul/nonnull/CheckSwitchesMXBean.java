@@ -0,0 +1,54 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.List;
+
+/**
+ * The management interface to turn checks off and on at runtime. It is
+ * registered as {@value CheckSwitches#OBJECT_NAME}.
+ *
+ * Packages are given in dotted form. The package of a check is the package
+ * of the class declaring the checked method or field.
+ */
+public interface CheckSwitchesMXBean {
+
+    /**
+     * @return false if all checks are turned off
+     */
+    boolean isEnabled();
+
+    /**
+     * Turn all checks off or on again.
+     *
+     * @param enabled
+     *            whether checks are to be performed
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Turn off the checks for a package (not including subpackages).
+     *
+     * @param pack
+     *            the name of the package
+     */
+    void disablePackage(String pack);
+
+    /**
+     * Turn on the checks for a package again.
+     *
+     * @param pack
+     *            the name of the package
+     */
+    void enablePackage(String pack);
+
+    /**
+     * @return the packages whose checks are turned off
+     */
+    List<String> getDisabledPackages();
+}
@@ -0,0 +1,307 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import nonnull.NoNullnessChecks;
+
+/**
+ * The metrics of the checker, published as MBean (see
+ * {@link CheckerMetricsMXBean}). They are only collected if
+ * {@link NonNullAgent#METRICS} is set.
+ *
+ * All counters are {@link LongAdder}s. Counting an execution of a site costs
+ * one increment on the counter of the site.
+ */
+@NoNullnessChecks
+final class CheckerMetrics implements CheckerMetricsMXBean {
+
+    static final String OBJECT_NAME = "de.matul.nonnull:type=CheckerMetrics";
+
+    /**
+     * The counters of a single site.
+     */
+    static final class Counters {
+        final LongAdder executions = new LongAdder();
+        final LongAdder violations = new LongAdder();
+        /** set once the annotation of the site is known */
+        private final AtomicBoolean resolved = new AtomicBoolean();
+        private final String className;
+        private final String description;
+
+        private Counters(String className, String description) {
+            this.className = className;
+            this.description = description;
+        }
+    }
+
+    /**
+     * The counters of the live sites.
+     */
+    private static final Set<Counters> sites = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The executions and violations of the retired sites per package (in
+     * internal form).
+     */
+    private static final Map<String, LongAdder> retiredExecutions = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> retiredViolations = new ConcurrentHashMap<>();
+    private static final LongAdder siteCount = new LongAdder();
+    private static final LongAdder resolvedAtTransformation = new LongAdder();
+    private static final LongAdder resolvedAtRuntime = new LongAdder();
+    private static final LongAdder unresolved = new LongAdder();
+    private static final LongAdder elided = new LongAdder();
+    private static final LongAdder resolutionTime = new LongAdder();
+    private static final AtomicLongArray resolutionHistogram = new AtomicLongArray(64);
+
+    private static boolean registered;
+
+    private CheckerMetrics() {
+        // only the MBean instance
+    }
+
+    /**
+     * Register the MBean with the platform MBean server, if not already done.
+     */
+    static synchronized void register() {
+        if(registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new CheckerMetrics(), new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (InstanceAlreadyExistsException e) {
+            registered = true;
+            NonNullAgent.debug("The non-null metrics of another loader are registered");
+        } catch (JMException e) {
+            System.err.println("Cannot register the non-null metrics: " + e);
+        }
+    }
+
+    /**
+     * Create the counters for a site. They are not counted before they are
+     * added using {@link #addSite(Counters, boolean)}.
+     *
+     * @param className
+     *            the internal name of the class the site refers to
+     * @param description
+     *            the description of the site
+     * @return the fresh counters
+     */
+    static Counters newCounters(String className, String description) {
+        return new Counters(className, description);
+    }
+
+    /**
+     * Add the counters of a new site.
+     *
+     * @param counters
+     *            the counters of the site
+     * @param resolved
+     *            true if the annotation is known at transformation time
+     */
+    static void addSite(Counters counters, boolean resolved) {
+        sites.add(counters);
+        siteCount.increment();
+        // every site counts as unresolved until its first resolution, which
+        // may already have happened in another thread
+        unresolved.increment();
+        if(resolved) {
+            resolvedByTransformation(counters);
+        }
+    }
+
+    /**
+     * Record that the annotation of a site has become known at the
+     * transformation of a class. Only the first resolution of a site is
+     * counted.
+     *
+     * @param counters
+     *            the counters of the site
+     */
+    static void resolvedByTransformation(Counters counters) {
+        if(counters.resolved.compareAndSet(false, true)) {
+            resolvedAtTransformation.increment();
+            unresolved.decrement();
+        }
+    }
+
+    /**
+     * Retire the counters of a site which cannot run anymore since its class
+     * loader has been collected. The counts are kept per package only.
+     *
+     * @param counters
+     *            the counters of the site
+     */
+    static void retire(Counters counters) {
+        if(sites.remove(counters)) {
+            if(counters.resolved.compareAndSet(false, true)) {
+                unresolved.decrement();
+            }
+            String pack = packageOf(counters);
+            retiredExecutions.computeIfAbsent(pack, p -> new LongAdder())
+                    .add(counters.executions.sum());
+            retiredViolations.computeIfAbsent(pack, p -> new LongAdder())
+                    .add(counters.violations.sum());
+        }
+    }
+
+    /**
+     * Record checks left out during a transformation.
+     *
+     * @param count
+     *            the number of checks left out
+     */
+    static void elided(int count) {
+        elided.add(count);
+    }
+
+    /**
+     * Record the resolution of a site at runtime. Only the first resolution
+     * of a site is counted as such, but the time of every resolution is
+     * recorded.
+     *
+     * @param counters
+     *            the counters of the site
+     * @param nanos
+     *            the time the resolution took
+     */
+    static void resolved(Counters counters, long nanos) {
+        if(counters.resolved.compareAndSet(false, true)) {
+            resolvedAtRuntime.increment();
+            unresolved.decrement();
+        }
+        resolutionTime.add(nanos);
+        resolutionHistogram.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+    }
+
+    @Override
+    public long getSiteCount() {
+        return siteCount.sum();
+    }
+
+    @Override
+    public long getResolvedAtTransformationCount() {
+        return resolvedAtTransformation.sum();
+    }
+
+    @Override
+    public long getResolvedAtRuntimeCount() {
+        return resolvedAtRuntime.sum();
+    }
+
+    @Override
+    public long getUnresolvedCount() {
+        return unresolved.sum();
+    }
+
+    @Override
+    public long getElidedCount() {
+        return elided.sum();
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return sum(c -> c.executions.sum(), retiredExecutions);
+    }
+
+    @Override
+    public long getViolationCount() {
+        return sum(c -> c.violations.sum(), retiredViolations);
+    }
+
+    @Override
+    public Map<String, Long> getExecutionsPerPackage() {
+        return perPackage(c -> c.executions.sum(), retiredExecutions);
+    }
+
+    @Override
+    public Map<String, Long> getViolationsPerPackage() {
+        return perPackage(c -> c.violations.sum(), retiredViolations);
+    }
+
+    @Override
+    public long getResolutionTime() {
+        return resolutionTime.sum();
+    }
+
+    @Override
+    public long[] getResolutionLatencyHistogram() {
+        long[] result = new long[resolutionHistogram.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = resolutionHistogram.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public long getRegistrySlots() {
+        return NonNullChecker.getRegistrySlots();
+    }
+
+    @Override
+    public long getRegistryFootprint() {
+        return NonNullChecker.getRegistryFootprint();
+    }
+
+    @Override
+    public List<String> topSites(int limit) {
+        List<Counters> all = new ArrayList<>(sites);
+        all.sort(Comparator.comparingLong((Counters c) -> c.executions.sum()).reversed());
+        List<String> result = new ArrayList<>();
+        for (Counters c : all.subList(0, Math.max(0, Math.min(limit, all.size())))) {
+            result.add(c.description + " " + c.executions.sum() + " " + c.violations.sum());
+        }
+        return result;
+    }
+
+    private static long sum(ToLongFunction<Counters> f, Map<String, LongAdder> retired) {
+        long result = 0;
+        for (Counters c : sites) {
+            result += f.applyAsLong(c);
+        }
+        for (LongAdder count : retired.values()) {
+            result += count.sum();
+        }
+        return result;
+    }
+
+    private static Map<String, Long> perPackage(ToLongFunction<Counters> f,
+            Map<String, LongAdder> retired) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Counters c : sites) {
+            result.merge(packageOf(c).replace('/', '.'), f.applyAsLong(c), Long::sum);
+        }
+        for (Map.Entry<String, LongAdder> count : retired.entrySet()) {
+            result.merge(count.getKey().replace('/', '.'), count.getValue().sum(), Long::sum);
+        }
+        return result;
+    }
+
+    private static String packageOf(Counters counters) {
+        int slash = counters.className.lastIndexOf('/');
+        return slash < 0 ? "" : counters.className.substring(0, slash);
+    }
+}
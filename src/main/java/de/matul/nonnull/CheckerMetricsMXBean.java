@@ -0,0 +1,108 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of the checker metrics. It is registered as
+ * {@value CheckerMetrics#OBJECT_NAME} if the agent runs with metrics enabled
+ * (see {@link NonNullAgent#METRICS}).
+ *
+ * Executions of inline checks (see {@link NonNullAgent#INLINE}) only count
+ * if the value is null.
+ */
+public interface CheckerMetricsMXBean {
+
+    /**
+     * @return the number of check sites created so far
+     */
+    long getSiteCount();
+
+    /**
+     * @return the number of sites whose annotation has been determined at
+     *         transformation time
+     */
+    long getResolvedAtTransformationCount();
+
+    /**
+     * @return the number of sites whose annotation has been determined at
+     *         runtime
+     */
+    long getResolvedAtRuntimeCount();
+
+    /**
+     * @return the number of sites of live class loaders whose annotation is
+     *         still unknown
+     */
+    long getUnresolvedCount();
+
+    /**
+     * @return the number of checks left out at transformation time since
+     *         the value is certainly not null (see {@link NullnessAnalysis})
+     */
+    long getElidedCount();
+
+    /**
+     * @return the sum of all executions of check sites
+     */
+    long getExecutionCount();
+
+    /**
+     * @return the sum of all violations
+     */
+    long getViolationCount();
+
+    /**
+     * @return the number of executions per package
+     */
+    Map<String, Long> getExecutionsPerPackage();
+
+    /**
+     * @return the number of violations per package
+     */
+    Map<String, Long> getViolationsPerPackage();
+
+    /**
+     * @return the total time spent in runtime resolution in nanoseconds
+     */
+    long getResolutionTime();
+
+    /**
+     * The histogram of the runtime resolution latencies. Entry i is the number
+     * of resolutions which took less than 2<sup>i</sup> but at least
+     * 2<sup>i-1</sup> nanoseconds.
+     *
+     * @return an array of 64 counts
+     */
+    long[] getResolutionLatencyHistogram();
+
+    /**
+     * @return the number of allocated slots in the checker map for legacy
+     *         (non invokedynamic) sites
+     */
+    long getRegistrySlots();
+
+    /**
+     * @return an estimate of the memory used by the checker map, the entries
+     *         shared by the sites of the same contract and their strings in
+     *         bytes
+     */
+    long getRegistryFootprint();
+
+    /**
+     * Get the sites with the most executions.
+     *
+     * @param limit
+     *            the maximum number of sites to return, no site is returned
+     *            if it is not positive
+     * @return lines of the form "site executions violations"
+     */
+    List<String> topSites(int limit);
+}
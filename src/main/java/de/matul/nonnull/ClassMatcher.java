@@ -0,0 +1,175 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import nonnull.Nullable;
+
+/**
+ * The compiled filter deciding which classes are instrumented. It is built
+ * from a list of patterns:
+ * <ul>
+ * <li>A plain pattern like {@code com.acme.} is a prefix of the class names
+ * to include. "ALL" includes all classes.
+ * <li>A pattern with wildcards is a glob which must match the whole class
+ * name: {@code *} matches any part of a name within a package, {@code **}
+ * any part of a name across packages, and {@code ?} a single character
+ * within a package.
+ * <li>A pattern starting with "!" excludes the classes it matches.
+ * </ul>
+ * A class is instrumented if an include pattern matches and no exclude
+ * pattern does. Generated classes (lambda forms, CGLIB classes and dynamic
+ * proxies) are never instrumented.
+ *
+ * The patterns are stored in a trie of the literal prefixes (up to the first
+ * wildcard). Only the patterns along the path of a class name are tried,
+ * such that the cost of a test depends on the length of the name rather than
+ * on the number of patterns.
+ */
+final class ClassMatcher {
+
+    /**
+     * A node of the trie. The patterns stored in the node have its path as
+     * literal prefix.
+     */
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        /** a plain include or exclude pattern ends in this node */
+        private boolean include;
+        private boolean exclude;
+        private @Nullable List<Pattern> includeGlobs;
+        private @Nullable List<Pattern> excludeGlobs;
+    }
+
+    private final Node root = new Node();
+
+    private ClassMatcher() {
+    }
+
+    /**
+     * Compile a list of patterns.
+     *
+     * @param patterns
+     *            the patterns, with class names in binary or internal form
+     * @return the matcher for the patterns
+     */
+    static ClassMatcher compile(Collection<String> patterns) {
+        ClassMatcher result = new ClassMatcher();
+        for (String pattern : patterns) {
+            result.add(pattern);
+        }
+        return result;
+    }
+
+    private void add(String pattern) {
+        boolean exclude = pattern.startsWith("!");
+        String name = (exclude ? pattern.substring(1) : pattern).replace('.', '/');
+        if(name.equals("ALL")) {
+            name = "";
+        }
+
+        int wildcard = 0;
+        while(wildcard < name.length() && "*?".indexOf(name.charAt(wildcard)) < 0) {
+            wildcard++;
+        }
+
+        Node node = root;
+        for (int i = 0; i < wildcard; i++) {
+            node = node.children.computeIfAbsent(name.charAt(i), c -> new Node());
+        }
+
+        if(wildcard == name.length()) {
+            if(exclude) {
+                node.exclude = true;
+            } else {
+                node.include = true;
+            }
+        } else if(exclude) {
+            if(node.excludeGlobs == null) {
+                node.excludeGlobs = new ArrayList<>();
+            }
+            node.excludeGlobs.add(toRegex(name));
+        } else {
+            if(node.includeGlobs == null) {
+                node.includeGlobs = new ArrayList<>();
+            }
+            node.includeGlobs.add(toRegex(name));
+        }
+    }
+
+    private static Pattern toRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if(c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                sb.append(".*");
+                i++;
+            } else if(c == '*') {
+                sb.append("[^/]*");
+            } else if(c == '?') {
+                sb.append("[^/]");
+            } else {
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * Check whether a class is to be instrumented.
+     *
+     * @param className
+     *            the internal name of the class
+     * @return true if an include pattern matches the class, but no exclude
+     *         pattern, and the class is not generated
+     */
+    boolean matches(String className) {
+        boolean included = false;
+        Node node = root;
+        int pos = 0;
+        while(node != null) {
+            if(node.exclude || anyMatches(node.excludeGlobs, className)) {
+                return false;
+            }
+            included |= node.include || anyMatches(node.includeGlobs, className);
+            node = pos < className.length() ? node.children.get(className.charAt(pos++)) : null;
+        }
+        return included && !isGenerated(className);
+    }
+
+    private static boolean anyMatches(@Nullable List<Pattern> globs, String className) {
+        if(globs != null) {
+            for (Pattern glob : globs) {
+                if(glob.matcher(className).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a class has been generated at runtime: a lambda form, a
+     * class generated by CGLIB or a dynamic proxy.
+     *
+     * @param className
+     *            the internal name of the class
+     * @return true if the class is generated
+     */
+    static boolean isGenerated(String className) {
+        int simpleName = className.lastIndexOf('/') + 1;
+        return className.contains("$$Lambda") || className.contains("CGLIB$$") ||
+                className.startsWith("$Proxy", simpleName);
+    }
+}
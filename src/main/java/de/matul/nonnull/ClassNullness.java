@@ -0,0 +1,302 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nonnull.Nullable;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.TypeReference;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
+
+/**
+ * The nullness annotations of a single class as they are found in its class
+ * file.
+ *
+ * Only runtime visible annotations are considered, i.e. the very same
+ * annotations which {@link NonNullResolver} would see using reflection.
+ * Declaration annotations take precedence over type annotations.
+ */
+final class ClassNullness {
+
+    /**
+     * The internal name of the class
+     */
+    final String name;
+
+    /**
+     * The internal name of the superclass, null for java.lang.Object
+     */
+    final @Nullable String superName;
+
+    /**
+     * The internal names of the implemented interfaces
+     */
+    final String[] interfaces;
+
+    /**
+     * true if the class file has not been read since the class is known
+     * to be without annotations
+     */
+    final boolean unannotated;
+
+    /**
+     * The annotation on the class itself.
+     */
+    AnnotationType classAnnotation = AnnotationType.NONE;
+
+    /**
+     * Maps name + descriptor of every declared method to its annotations.
+     * Index 0 holds the result annotation, index i+1 the annotation of
+     * parameter i.
+     */
+    private final Map<String, AnnotationType[]> methods = new HashMap<>();
+
+    /**
+     * Maps the names of the declared fields to their annotations.
+     */
+    private final Map<String, AnnotationType> fields = new HashMap<>();
+
+    private ClassNullness(String name, @Nullable String superName,
+            String[] interfaces, boolean unannotated) {
+        this.name = name;
+        this.unannotated = unannotated;
+        this.superName = superName;
+        this.interfaces = interfaces == null ? new String[0] : interfaces;
+    }
+
+    /**
+     * Read the nullness annotations from a class file. The code of the methods
+     * is not visited.
+     *
+     * @param reader
+     *            the reader for the class file
+     * @return the annotation summary of the class
+     */
+    static ClassNullness read(ClassReader reader) {
+        Scanner scanner = new Scanner();
+        reader.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+        return scanner.result;
+    }
+
+    /**
+     * Create the summary for a class which is known to carry no nullness
+     * annotations without reading its class file.
+     *
+     * @param name
+     *            the internal name of the class
+     * @return an empty summary
+     */
+    static ClassNullness unannotated(String name) {
+        return new ClassNullness(name, null, null, true);
+    }
+
+    /**
+     * Get the annotations of a declared method.
+     *
+     * @return an array with the result annotation at index 0 and the
+     *         parameter annotations thereafter, null if the method is not
+     *         declared in this class.
+     */
+    @Nullable AnnotationType[] getMethod(String methodName, String methodDesc) {
+        return methods.get(methodName + methodDesc);
+    }
+
+    /**
+     * Get the annotation of a declared field.
+     *
+     * @return the annotation, null if the field is not declared in this class.
+     */
+    @Nullable AnnotationType getField(String fieldName) {
+        return fields.get(fieldName);
+    }
+
+    /**
+     * Check whether any non-null or deep non-null annotation has been found
+     * in the class.
+     *
+     * @return true if the class, a method, a parameter or a field is
+     *         annotated (deep) non-null
+     */
+    boolean mentionsNonNull() {
+        if(isNonNull(classAnnotation)) {
+            return true;
+        }
+        for (AnnotationType field : fields.values()) {
+            if(isNonNull(field)) {
+                return true;
+            }
+        }
+        for (AnnotationType[] method : methods.values()) {
+            for (AnnotationType ann : method) {
+                if(isNonNull(ann)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNonNull(AnnotationType type) {
+        return type == AnnotationType.NON_NULL || type == AnnotationType.DEEP_NON_NULL;
+    }
+
+    /*
+     * Only annotations on the outermost type are relevant. Inner type steps
+     * are allowed as in "Outer.@NonNull Inner".
+     */
+    private static boolean isTopLevel(TypePath typePath) {
+        if(typePath == null) {
+            return true;
+        }
+        for (int i = 0; i < typePath.getLength(); i++) {
+            if(typePath.getStep(i) != TypePath.INNER_TYPE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static AnnotationType merge(AnnotationType known, String desc, boolean visible) {
+        if(known != AnnotationType.NONE || !visible) {
+            return known;
+        }
+        return NonNullResolver.classify(Type.getType(desc).getClassName());
+    }
+
+    private static class Scanner extends ClassVisitor {
+
+        private ClassNullness result;
+
+        Scanner() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature,
+                String superName, String[] interfaces) {
+            result = new ClassNullness(name, superName, interfaces, false);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            result.classAnnotation = merge(result.classAnnotation, desc, visible);
+            return null;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String desc,
+                String signature, Object value) {
+            return new FieldVisitor(Opcodes.ASM9) {
+                private AnnotationType declAnn = AnnotationType.NONE;
+                private AnnotationType typeAnn = AnnotationType.NONE;
+
+                @Override
+                public AnnotationVisitor visitAnnotation(String annDesc, boolean visible) {
+                    declAnn = merge(declAnn, annDesc, visible);
+                    return null;
+                }
+
+                @Override
+                public AnnotationVisitor visitTypeAnnotation(int typeRef,
+                        TypePath typePath, String annDesc, boolean visible) {
+                    if(isTopLevel(typePath)) {
+                        typeAnn = merge(typeAnn, annDesc, visible);
+                    }
+                    return null;
+                }
+
+                @Override
+                public void visitEnd() {
+                    result.fields.put(name,
+                            declAnn != AnnotationType.NONE ? declAnn : typeAnn);
+                }
+            };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc,
+                String signature, String[] exceptions) {
+            int paramCount = Type.getArgumentTypes(desc).length;
+            AnnotationType[] declAnns = new AnnotationType[paramCount + 1];
+            AnnotationType[] typeAnns = new AnnotationType[paramCount + 1];
+            Arrays.fill(declAnns, AnnotationType.NONE);
+            Arrays.fill(typeAnns, AnnotationType.NONE);
+
+            return new MethodVisitor(Opcodes.ASM9) {
+                // synthetic parameters (like outer this) are not annotable.
+                private int paramOffset;
+
+                @Override
+                public AnnotationVisitor visitAnnotation(String annDesc, boolean visible) {
+                    declAnns[0] = merge(declAnns[0], annDesc, visible);
+                    return null;
+                }
+
+                @Override
+                public void visitAnnotableParameterCount(int count, boolean visible) {
+                    if(visible && count < paramCount) {
+                        paramOffset = paramCount - count;
+                    }
+                }
+
+                @Override
+                public AnnotationVisitor visitParameterAnnotation(int param,
+                        String annDesc, boolean visible) {
+                    int index = param + paramOffset + 1;
+                    if(index <= paramCount) {
+                        declAnns[index] = merge(declAnns[index], annDesc, visible);
+                    }
+                    return null;
+                }
+
+                @Override
+                public AnnotationVisitor visitTypeAnnotation(int typeRef,
+                        TypePath typePath, String annDesc, boolean visible) {
+                    if(!isTopLevel(typePath)) {
+                        return null;
+                    }
+                    TypeReference ref = new TypeReference(typeRef);
+                    switch(ref.getSort()) {
+                    case TypeReference.METHOD_RETURN:
+                        typeAnns[0] = merge(typeAnns[0], annDesc, visible);
+                        break;
+                    case TypeReference.METHOD_FORMAL_PARAMETER:
+                        int index = ref.getFormalParameterIndex() + 1;
+                        if(index <= paramCount) {
+                            typeAnns[index] = merge(typeAnns[index], annDesc, visible);
+                        }
+                        break;
+                    }
+                    return null;
+                }
+
+                @Override
+                public void visitEnd() {
+                    for (int i = 0; i < declAnns.length; i++) {
+                        if(declAnns[i] == AnnotationType.NONE) {
+                            declAnns[i] = typeAnns[i];
+                        }
+                    }
+                    result.methods.put(name + desc, declAnns);
+                }
+            };
+        }
+    }
+}
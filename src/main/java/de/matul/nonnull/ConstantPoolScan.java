@@ -0,0 +1,134 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * A cheap test whether a class may need checks at all. It runs before the
+ * class is visited and saves visiting and writing classes which would come
+ * out unchanged.
+ *
+ * A check can only be inserted into a class if
+ * <ul>
+ * <li>its constant pool mentions a non-null annotation (on the class, a
+ * method, a parameter or a field),
+ * <li>its package is annotated non-null,
+ * <li>it inherits from a class or interface which may carry non-null
+ * annotations, or
+ * <li>it refers to a field of another class which may carry non-null
+ * annotations.
+ * </ul>
+ * Classes whose class file cannot be found may carry annotations. Nullable
+ * annotations alone never cause a check.
+ */
+final class ConstantPoolScan {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_FIELDREF = 9;
+
+    /**
+     * The descriptors of the non-null annotations as they appear in the
+     * constant pool.
+     */
+    private static final byte[][] DESCRIPTORS;
+
+    static {
+        Set<String> names = NonNullResolver.getCheckedAnnotations();
+        DESCRIPTORS = new byte[names.size()][];
+        int i = 0;
+        for (String name : names) {
+            DESCRIPTORS[i++] = ("L" + name.replace('.', '/') + ";")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private ConstantPoolScan() {
+        // no instances
+    }
+
+    /**
+     * Check whether checks may need to be inserted into a class.
+     *
+     * @param reader
+     *            the reader of the class under transformation
+     * @param resolver
+     *            the resolver used for the transformation
+     * @return false if it is certain that no check will be inserted
+     */
+    static boolean mayNeedChecks(ClassReader reader, BytecodeResolver resolver) {
+        String className = reader.getClassName();
+        Set<String> fieldOwners = new HashSet<>();
+        char[] buffer = null;
+
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            // the second slot of long and double constants
+            if(offset == 0) {
+                continue;
+            }
+            switch(reader.readByte(offset - 1)) {
+            case CONSTANT_UTF8:
+                if(isNonNullDescriptor(reader, offset)) {
+                    return true;
+                }
+                break;
+            case CONSTANT_FIELDREF:
+                if(buffer == null) {
+                    buffer = new char[reader.getMaxStringLength()];
+                }
+                fieldOwners.add(reader.readClass(offset, buffer));
+                break;
+            }
+        }
+
+        if(resolver.isPackageNonNull(className) ||
+                resolver.mayInheritNonNull(reader.getSuperName())) {
+            return true;
+        }
+
+        for (String intf : reader.getInterfaces()) {
+            if(resolver.mayInheritNonNull(intf)) {
+                return true;
+            }
+        }
+
+        fieldOwners.remove(className);
+        for (String owner : fieldOwners) {
+            if(resolver.mayInheritNonNull(owner)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Compare the raw bytes of the UTF8 entry. Annotation descriptors are
+     * plain ASCII such that no decoding is necessary.
+     */
+    private static boolean isNonNullDescriptor(ClassReader reader, int offset) {
+        int length = reader.readUnsignedShort(offset);
+        outer: for (byte[] desc : DESCRIPTORS) {
+            if(desc.length != length) {
+                continue;
+            }
+            for (int j = 0; j < length; j++) {
+                if(reader.readByte(offset + 2 + j) != desc[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import nonnull.Nullable;
+
+/**
+ * A checker for the elements of values at deep non-null sites. Additional
+ * checkers can be provided as services (in
+ * {@code META-INF/services/de.matul.nonnull.DeepChecker}) on the class path
+ * of the agent. They take precedence over the built-in checkers for arrays,
+ * lists, collections, maps, iterables and optionals.
+ *
+ * The checker for a class is selected once per class. Implementations should
+ * be annotated {@code NoNullnessChecks}.
+ */
+public interface DeepChecker {
+
+    /**
+     * Check whether this checker handles the values of a class.
+     *
+     * @param type
+     *            the runtime class of a value at a deep non-null site
+     * @return true if this checker is to be used for the values of the class
+     */
+    boolean appliesTo(Class<?> type);
+
+    /**
+     * Search a value for an embedded null.
+     *
+     * @param value
+     *            the value to check, an instance of a class this checker
+     *            applies to
+     * @return null if the value contains no null, otherwise the location of
+     *         the null value used in the error message
+     */
+    @Nullable String findNull(Object value);
+}
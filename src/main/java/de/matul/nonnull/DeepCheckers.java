@@ -0,0 +1,275 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Spliterator;
+
+import nonnull.NoNullnessChecks;
+import nonnull.Nullable;
+
+/**
+ * The registry of the {@link DeepChecker}s. The checkers found by the
+ * {@link ServiceLoader} come first, then the built-in ones:
+ * <ol>
+ * <li>arrays of reference type, checked by an indexed loop,
+ * <li>lists with random access, checked by an indexed loop without iterator,
+ * <li>maps, whose keys and values are checked,
+ * <li>other collections, asked for {@code contains(null)} first. Collections
+ * which do not permit null may throw an exception instead, which means there
+ * is no null either. Only if there is a null, the collection is iterated to
+ * find its position.
+ * <li>iterables, which are iterated,
+ * <li>optionals. An empty optional is valid and the value of an optional is
+ * never null, so only the transitive check (see {@link TransitiveScan})
+ * descends into the value.
+ * </ol>
+ * Values of other classes have no elements to check. Large arrays and
+ * collections are scanned in parallel (see {@link ParallelScan}).
+ */
+@NoNullnessChecks
+final class DeepCheckers {
+
+    private static final DeepChecker NONE = new DeepChecker() {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return true;
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            return null;
+        }
+    };
+
+    private static final List<DeepChecker> checkers = new ArrayList<>();
+
+    /**
+     * The number of checkers found by the service loader, they come first.
+     */
+    private static final int pluginCount;
+
+    static {
+        try {
+            for (DeepChecker checker : ServiceLoader.load(DeepChecker.class,
+                    DeepChecker.class.getClassLoader())) {
+                NonNullAgent.debug("Using deep checker %s", checker.getClass().getName());
+                checkers.add(checker);
+            }
+        } catch (ServiceConfigurationError e) {
+            System.err.println("Cannot load the deep non-null checkers: " + e);
+        }
+        pluginCount = checkers.size();
+        checkers.add(new ArrayChecker());
+        checkers.add(new RandomAccessChecker());
+        checkers.add(new MapChecker());
+        checkers.add(new CollectionChecker());
+        checkers.add(new IterableChecker());
+        checkers.add(new OptionalChecker());
+    }
+
+    private static final ClassValue<DeepChecker> SELECTED = new ClassValue<DeepChecker>() {
+        @Override
+        protected DeepChecker computeValue(Class<?> type) {
+            for (DeepChecker checker : checkers) {
+                if(checker.appliesTo(type)) {
+                    return checker;
+                }
+            }
+            return NONE;
+        }
+    };
+
+    private DeepCheckers() {
+        // no instances
+    }
+
+    /**
+     * Search a value for an embedded null.
+     *
+     * @param value
+     *            the value at a deep non-null site, not null
+     * @return null if the value contains no null, otherwise its location
+     */
+    static @Nullable String findNull(Object value) {
+        return SELECTED.get(value.getClass()).findNull(value);
+    }
+
+    /**
+     * Check whether the values of a class have elements to check.
+     *
+     * @param type
+     *            the runtime class of a value
+     * @return true if a checker applies to the class
+     */
+    static boolean isContainer(Class<?> type) {
+        return SELECTED.get(type) != NONE;
+    }
+
+    /**
+     * Check whether the values of a class are checked by a checker found by
+     * the service loader.
+     *
+     * @param type
+     *            the runtime class of a value
+     * @return true if a plugged in checker applies to the class
+     */
+    static boolean isPlugin(Class<?> type) {
+        int index = checkers.indexOf(SELECTED.get(type));
+        return index >= 0 && index < pluginCount;
+    }
+
+    private static final class ArrayChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return Object[].class.isAssignableFrom(type);
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            Object[] array = (Object[]) value;
+            if(ParallelScan.applies(array.length)) {
+                long index = ParallelScan.indexOfNull(Arrays.spliterator(array));
+                return index < 0 ? null : "array index [" + index + "]";
+            }
+            for (int i = 0; i < array.length; i++) {
+                if(array[i] == null) {
+                    return "array index [" + i + "]";
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class RandomAccessChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return List.class.isAssignableFrom(type) &&
+                    RandomAccess.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            List<?> list = (List<?>) value;
+            Spliterator<?> parallel = ParallelScan.spliterator(list);
+            if(parallel != null) {
+                return scanInParallel(parallel);
+            }
+            for (int i = 0; i < list.size(); i++) {
+                if(list.get(i) == null) {
+                    return "iteration index " + i;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class MapChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return Map.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            if(!containsNull(map.keySet()) && !containsNull(map.values())) {
+                return null;
+            }
+            // keys are denoted by their position, their toString may fail
+            int pos = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if(entry.getKey() == null) {
+                    return "map key at iteration index " + pos;
+                }
+                if(entry.getValue() == null) {
+                    return "map value at iteration index " + pos;
+                }
+                pos ++;
+            }
+            return null;
+        }
+    }
+
+    private static final class CollectionChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return Collection.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            Collection<?> collection = (Collection<?>) value;
+            Spliterator<?> parallel = ParallelScan.spliterator(collection);
+            if(parallel != null) {
+                return scanInParallel(parallel);
+            }
+            return containsNull(collection) ? iterate(collection) : null;
+        }
+    }
+
+    private static final class IterableChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return Iterable.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            return iterate((Iterable<?>) value);
+        }
+    }
+
+    private static final class OptionalChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return type == Optional.class;
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            return null;
+        }
+    }
+
+    /*
+     * Collections which do not permit null may throw an exception when asked
+     * for null.
+     */
+    private static boolean containsNull(Collection<?> collection) {
+        try {
+            return collection.contains(null);
+        } catch (NullPointerException | ClassCastException e) {
+            return false;
+        }
+    }
+
+    private static @Nullable String scanInParallel(Spliterator<?> spliterator) {
+        long index = ParallelScan.indexOfNull(spliterator);
+        return index < 0 ? null : "iteration index " + index;
+    }
+
+    private static @Nullable String iterate(Iterable<?> iterable) {
+        int pos = 0;
+        for (Object object : iterable) {
+            if(object == null) {
+                return "iteration index " + pos;
+            }
+            pos ++;
+        }
+        return null;
+    }
+}
@@ -1,119 +1,182 @@
 /*
  * NonNull Runtime Checking for Methods
- * 
+ *
  * 2009 by Mattias Ulbrich
- * 
+ *
  * published under GPL.
  */
 
 package de.matul.nonnull;
 
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 /**
  * A dynamic array is similar to an {@link ArrayList}. However, no attention
  * must be paid on the index range: Values can be read from and written to any non-negative index.
  * If the index has not been used before, <code>null</code> is returned as the read value.
  *
+ * The data is stored in segments which are allocated when they are first
+ * written to. Segments are never copied or resized. Every segment is twice
+ * as large as its predecessor such that a directory of fixed size covers all
+ * non-negative int indices.
+ *
+ * The array is lock-free and safe for concurrent use: A value written by
+ * {@link #put(int, Object)} is safely published to threads reading it using
+ * {@link #get(int)}.
+ *
  * @author mattias ulbrich
- * 
+ *
  * @param <T>
  *            the type of elements to be stored in the dynamic array
  */
 public class DynamicArray<T> implements Serializable {
 
-    private static final long serialVersionUID = -7539901196038036280L;
+    private static final long serialVersionUID = 2405364837795001437L;
+
+    private static final VarHandle SEGMENTS =
+            MethodHandles.arrayElementVarHandle(Object[][].class);
+
+    private static final VarHandle ELEMENTS =
+            MethodHandles.arrayElementVarHandle(Object[].class);
 
     /**
-     * The array that holds the actual data
+     * The size of the first segment is {@code 1 << firstShift}.
      */
-    private Object[] array;
+    private final int firstShift;
 
     /**
-     * The lock used for synchronisation during writing
+     * The segments that hold the actual data. Segment k has size
+     * {@code 1 << (firstShift + k)}, unused segments are null.
      */
-    private transient final Object lock = new Object();
+    private final Object[][] segments;
 
     /**
-     * Instantiates a new empty dynamic array with default initial size 10.
+     * Instantiates a new empty dynamic array with default initial size 1024.
      */
     public DynamicArray() {
-        this(10);
+        this(1024);
     }
 
     /**
      * Instantiates a new dynamic array with the given initial size.
-     * 
+     *
      * @param initialSize
-     *            the initial size, {@literal > 0}
+     *            the initial size, {@literal > 0}. It is rounded up to the
+     *            next power of two.
      */
     public DynamicArray(int initialSize) {
         if(initialSize <= 0) {
             throw new IllegalArgumentException("Size of a dynamic array must be positive");
         }
-        array = new Object[initialSize];
+        if(initialSize > 1 << 30) {
+            throw new IllegalArgumentException("Initial size of a dynamic array too large");
+        }
+        firstShift = 32 - Integer.numberOfLeadingZeros(initialSize - 1);
+        segments = new Object[32 - firstShift][];
     }
 
     /**
      * Write an entry to the array. If the index is not within the range of the
      * array, the range is augmented automatically.
-     * 
+     *
      * @param index
      *            the index to write to, {@literal >= 0}
      * @param entry
      *            the value to store
      */
     public void put(int index, T entry) {
-        ensureSize(index);
-        array[index] = entry;
+        checkIndex(index);
+        long shifted = (long)index + (1L << firstShift);
+        int segment = segmentOf(shifted);
+        Object[] array = (Object[]) SEGMENTS.getAcquire(segments, segment);
+        if(array == null) {
+            array = allocate(segment);
+        }
+        ELEMENTS.setRelease(array, offsetOf(shifted, segment), entry);
     }
 
     /**
      * Gets the value at an index. If the index has not been written to, yet, it
      * returns null.
-     * 
+     *
      * @param index
      *            the index, {@literal >= 0);
      * @return the value stored at the index, or <code>null</code> if non stored.
      */
     @SuppressWarnings("unchecked")
     public T get(int index) {
-        if(index < array.length) {
-            return (T)array[index];
-        } else {
+        checkIndex(index);
+        long shifted = (long)index + (1L << firstShift);
+        int segment = segmentOf(shifted);
+        Object[] array = (Object[]) SEGMENTS.getAcquire(segments, segment);
+        if(array == null) {
             return null;
+        } else {
+            return (T) ELEMENTS.getAcquire(array, offsetOf(shifted, segment));
         }
     }
 
     /**
      * Removes an index from the array.
-     * 
+     *
      * @param index
      *            the index, {@literal >= 0}
      */
     public void remove(int index) {
-        if(index < array.length) {
-            put(index, null);
+        checkIndex(index);
+        long shifted = (long)index + (1L << firstShift);
+        int segment = segmentOf(shifted);
+        Object[] array = (Object[]) SEGMENTS.getAcquire(segments, segment);
+        if(array != null) {
+            ELEMENTS.setRelease(array, offsetOf(shifted, segment), null);
         }
     }
 
-    /*
-     * Ensure size of the array such that index is within the range.
-     * 
-     * This is synchronised as only one thread should modify the array.
+    /**
+     * Gets the number of entries for which memory has been allocated.
+     *
+     * @return the sum of the sizes of all allocated segments
      */
-    private void ensureSize(int index) {
-        if(index >= array.length) {
-            synchronized (lock) {
-                // check original size again in case of concurrent change
-                int newSize = array.length;
-                while(index >= newSize) {
-                    newSize = newSize * 4 / 3;
-                }
-                array = Arrays.copyOf(array, newSize);
+    public long getAllocatedSize() {
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            Object[] array = (Object[]) SEGMENTS.getAcquire(segments, i);
+            if(array != null) {
+                result += array.length;
             }
         }
+        return result;
+    }
+
+    private static void checkIndex(int index) {
+        if(index < 0) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+    /*
+     * Index i lives in the segment given by the highest bit of
+     * i + size of the first segment.
+     */
+    private int segmentOf(long shifted) {
+        return 63 - Long.numberOfLeadingZeros(shifted) - firstShift;
+    }
+
+    private int offsetOf(long shifted, int segment) {
+        return (int) (shifted - (1L << (firstShift + segment)));
+    }
+
+    /*
+     * Allocate a segment. If another thread is faster, its segment is used.
+     */
+    private Object[] allocate(int segment) {
+        // the last segment is only partially reachable by int indices
+        int size = firstShift + segment == 31 ? 1 << firstShift : 1 << (firstShift + segment);
+        Object[] fresh = new Object[size];
+        Object[] witness = (Object[]) SEGMENTS.compareAndExchange(segments, segment, null, fresh);
+        return witness == null ? fresh : witness;
     }
 }
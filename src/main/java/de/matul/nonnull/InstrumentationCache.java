@@ -0,0 +1,353 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nonnull.Nullable;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A cache of instrumented class files. The same class file is often loaded by
+ * more than one class loader (or once more after a restart). The result of
+ * the instrumentation is then taken from the cache instead of running ASM
+ * again.
+ *
+ * The key is the SHA-256 hash of the original class file and the agent
+ * configuration (including the additional annotation names set by system
+ * properties). Since the result also depends on the annotations of
+ * superclasses, interfaces and packages, the class files consulted during the
+ * instrumentation are recorded with their hashes. A cached result is only used
+ * if the loader in question sees the same versions of these class files.
+ * The hashes of the class files seen by a loader are remembered, since many
+ * classes of a loader share their dependencies; a loader is assumed to see
+ * the same class files for its whole lifetime.
+ *
+ * Only instrumented classes which use invokedynamic checks exclusively are
+ * cached. They describe their check sites themselves while the legacy checks
+ * refer to indices into the checker map of the running VM.
+ *
+ * Results are kept in memory (softly referenced, the entries are removed
+ * once the garbage collector has cleared them) and, if
+ * {@link NonNullAgent#CACHE_DIR} is set, in files in that directory.
+ */
+final class InstrumentationCache {
+
+    /**
+     * The marker in the dependencies for class files which do not exist.
+     */
+    static final String MISSING = "-";
+
+    /**
+     * The first int in a cache file.
+     */
+    private static final int MAGIC = 0x4E4E4303;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * The result of an instrumentation together with the class files it
+     * depends on.
+     */
+    private static final class Cached {
+        /** the instrumented class, null if to be left untouched */
+        private final @Nullable byte[] result;
+        /** the number of inserted checks */
+        private final int checks;
+        /** the number of checks left out */
+        private final int elided;
+        /** resource name to hash, or {@link #MISSING} */
+        private final Map<String, String> dependencies;
+
+        private Cached(@Nullable byte[] result, int checks, int elided,
+                Map<String, String> dependencies) {
+            this.result = result;
+            this.checks = checks;
+            this.elided = elided;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * The in-memory entry. It knows its key such that it can be removed from
+     * {@link #memory} once the result has been collected.
+     */
+    private static final class CachedRef extends SoftReference<Cached> {
+        private final String key;
+
+        private CachedRef(String key, Cached cached, ReferenceQueue<Cached> queue) {
+            super(cached, queue);
+            this.key = key;
+        }
+    }
+
+    private final Map<String, CachedRef> memory = new ConcurrentHashMap<>();
+
+    /**
+     * The entries of {@link #memory} whose results have been collected.
+     */
+    private final ReferenceQueue<Cached> cleared = new ReferenceQueue<>();
+
+    /**
+     * The hashes of the class files seen by the class loaders (resource name
+     * to hash or {@link #MISSING}). The loaders are weakly referenced.
+     */
+    private final Map<ClassLoader, Map<String, String>> seen =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, String> seenByBootstrap = new ConcurrentHashMap<>();
+
+    private final @Nullable Path directory;
+
+    /**
+     * Describes the agent such that changes to the configuration or the agent
+     * itself lead to different keys.
+     */
+    private final String fingerprint;
+
+    /**
+     * Instantiates a new cache using the current agent configuration.
+     *
+     * @param directory
+     *            the directory for the cache files, null to cache in memory
+     *            only
+     */
+    InstrumentationCache(@Nullable String directory) {
+        this.directory = directory == null ? null : Paths.get(directory);
+        this.fingerprint = "inline=" + NonNullAgent.INLINE + ";indy=" + NonNullAgent.INDY +
+                ";reads=" + NonNullAgent.READS + ";boundary=" + NonNullAgent.BOUNDARY +
+                ";elide=" + NonNullAgent.ELIDE +
+                ";nonnull=" + System.getProperty("de.matul.nonnull.annotation.nonnull") +
+                ";nullable=" + System.getProperty("de.matul.nonnull.annotation.nullable") +
+                ";deepnonnull=" + System.getProperty("de.matul.nonnull.annotation.deepnonnull") +
+                ";agent=" + agentVersion();
+    }
+
+    /**
+     * Instrument a class file, or take the result from the cache.
+     *
+     * @param loader
+     *            the defining loader of the class, null for the bootstrap
+     *            loader
+     * @param data
+     *            the class file to instrument
+     * @param event
+     *            the event which receives the number of checks and whether
+     *            the cache has been used
+     * @return the instrumented class file, null if no check has been inserted
+     */
+    @Nullable byte[] instrument(@Nullable ClassLoader loader, byte[] data,
+            NonNullEvents.Transform event) {
+        ClassReader reader = new ClassReader(data);
+        if(!isCacheable(data)) {
+            return NonNullTransformer.instrument(reader,
+                    new BytecodeResolver(loader, reader), null, event);
+        }
+
+        String key = digest(fingerprint.getBytes(StandardCharsets.UTF_8), data);
+        Cached cached = lookup(key);
+        if(cached != null && isValid(cached, loader)) {
+            NonNullAgent.debug("Instrumentation taken from cache");
+            event.cached = true;
+            event.checks = cached.checks;
+            event.elided = cached.elided;
+            return cached.result;
+        }
+
+        BytecodeResolver resolver =
+                new BytecodeResolver(loader, reader);
+        resolver.dependencies = new HashMap<>();
+        byte[] result = NonNullTransformer.instrument(reader, resolver, null, event);
+
+        cached = new Cached(result, event.checks, event.elided, resolver.dependencies);
+        seenBy(loader).putAll(resolver.dependencies);
+        remember(key, cached);
+        if(directory != null) {
+            store(key, cached);
+        }
+        return result;
+    }
+
+    private static boolean isCacheable(byte[] data) {
+        int majorVersion = ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+        return NonNullAgent.INDY && majorVersion >= Opcodes.V1_7;
+    }
+
+    private @Nullable Cached lookup(String key) {
+        CachedRef ref = memory.get(key);
+        Cached result = ref == null ? null : ref.get();
+        if(result == null && directory != null) {
+            result = load(key);
+            if(result != null) {
+                remember(key, result);
+            }
+        }
+        return result;
+    }
+
+    private void remember(String key, Cached cached) {
+        Reference<? extends Cached> ref;
+        while((ref = cleared.poll()) != null) {
+            memory.remove(((CachedRef) ref).key, ref);
+        }
+        memory.put(key, new CachedRef(key, cached, cleared));
+    }
+
+    private boolean isValid(Cached cached, @Nullable ClassLoader loader) {
+        Map<String, String> hashes = seenBy(loader);
+        for (Map.Entry<String, String> dep : cached.dependencies.entrySet()) {
+            String hash = hashes.get(dep.getKey());
+            if(hash == null) {
+                byte[] bytes = BytecodeResolver.readResource(loader, dep.getKey());
+                hash = bytes == null ? MISSING : digest(bytes);
+                hashes.put(dep.getKey(), hash);
+            }
+            if(!hash.equals(dep.getValue())) {
+                NonNullAgent.debug("Cached instrumentation outdated by %s", dep.getKey());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<String, String> seenBy(@Nullable ClassLoader loader) {
+        if(loader == null) {
+            return seenByBootstrap;
+        }
+        return seen.computeIfAbsent(loader, l -> new ConcurrentHashMap<>());
+    }
+
+    /*
+     * Cache files are written to a temporary file first and then moved such
+     * that concurrent VMs never see half written files.
+     */
+    private void store(String key, Cached cached) {
+        try {
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, key, ".tmp");
+            try(OutputStream os = Files.newOutputStream(tmp);
+                    DataOutputStream out = new DataOutputStream(os)) {
+                out.writeInt(MAGIC);
+                out.writeInt(cached.checks);
+                out.writeInt(cached.elided);
+                out.writeInt(cached.dependencies.size());
+                for (Map.Entry<String, String> dep : cached.dependencies.entrySet()) {
+                    out.writeUTF(dep.getKey());
+                    out.writeUTF(dep.getValue());
+                }
+                if(cached.result == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(cached.result.length);
+                    out.write(cached.result);
+                }
+            }
+            Files.move(tmp, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            NonNullAgent.debug("Cannot write cache file for %s: %s", key, e);
+        }
+    }
+
+    private @Nullable Cached load(String key) {
+        Path file = directory.resolve(key);
+        if(!Files.isRegularFile(file)) {
+            return null;
+        }
+        try(InputStream is = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(is)) {
+            if(in.readInt() != MAGIC) {
+                return null;
+            }
+            int checks = in.readInt();
+            int elided = in.readInt();
+            int count = in.readInt();
+            Map<String, String> dependencies = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                dependencies.put(in.readUTF(), in.readUTF());
+            }
+            byte[] result = null;
+            int length = in.readInt();
+            if(length >= 0) {
+                result = new byte[length];
+                in.readFully(result);
+            }
+            return new Cached(result, checks, elided, dependencies);
+        } catch (IOException e) {
+            NonNullAgent.debug("Cannot read cache file %s: %s", file, e);
+            return null;
+        }
+    }
+
+    /*
+     * The location and time stamp of the agent jar. A new version of the agent
+     * may instrument differently.
+     */
+    private static String agentVersion() {
+        CodeSource source = NonNullAgent.class.getProtectionDomain().getCodeSource();
+        URL location = source == null ? null : source.getLocation();
+        if(location == null) {
+            return "unknown";
+        }
+        try {
+            Path path = Paths.get(location.toURI());
+            return path + "@" + Files.getLastModifiedTime(path).toMillis();
+        } catch (Exception e) {
+            return location.toString();
+        }
+    }
+
+    /**
+     * Compute the SHA-256 hash of the concatenation of byte arrays.
+     *
+     * @param data
+     *            the data to hash
+     * @return the hash as hex string
+     */
+    static String digest(byte[]... data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (byte[] bytes : data) {
+                md.update(bytes);
+            }
+            byte[] hash = md.digest();
+            char[] result = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                result[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+                result[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(result);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
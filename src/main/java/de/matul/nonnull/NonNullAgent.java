@@ -7,15 +7,19 @@
  */
 package de.matul.nonnull;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.lang.instrument.ClassFileTransformer;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.security.ProtectionDomain;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import nonnull.Nullable;
 
 // TODO: Auto-generated Javadoc
 /**
@@ -32,6 +36,68 @@ public class NonNullAgent {
      */
     public static boolean VERBOSE = Boolean.getBoolean("de.matul.nonnull.debug");
 
+    /**
+     * If set, plain non-null checks are emitted inline: The value is compared
+     * against null in the instrumented code and the checker is only called
+     * if the value is null. Deep checks and checks which could not be
+     * resolved during instrumentation still call the checker.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.inline} or
+     * the java agent argument "INLINE".
+     */
+    public static boolean INLINE = Boolean.getBoolean("de.matul.nonnull.inline");
+
+    /**
+     * If set, checks in class files of version 51 (Java 7) and above are
+     * invokedynamic call sites. They are resolved once and then relinked to
+     * a no-op, a null test or a deep check. Otherwise every check reads its
+     * entry from the checker map.
+     *
+     * Set by default. Can be reset using the system property
+     * {@code de.matul.nonnull.indy} or the java agent argument "NOINDY".
+     */
+    public static boolean INDY =
+            Boolean.parseBoolean(System.getProperty("de.matul.nonnull.indy", "true"));
+
+    /**
+     * If set, values read from non-null fields are checked as well. Plain
+     * non-null checks are always emitted inline: the checker is only called
+     * if the value is null. Values read from deep non-null fields are checked
+     * deeply. Repeated reads of the same field of the same object
+     * within a basic block are checked only once. Reads of the own fields in
+     * constructors and static initialisers are not checked. Class files of
+     * version 50 (Java 6) are not checked for reads.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.reads}
+     * or the java agent argument "READS".
+     */
+    public static boolean READS = Boolean.getBoolean("de.matul.nonnull.reads");
+
+    /**
+     * If set, only the boundaries of classes are checked: parameters and
+     * results of public and protected methods of public classes, and stores
+     * into fields from outside their declaring class (including subclasses).
+     * Calls and stores within a class and to non-public methods are not
+     * checked.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.boundary}
+     * or the java agent argument "BOUNDARY".
+     */
+    public static boolean BOUNDARY = Boolean.getBoolean("de.matul.nonnull.boundary");
+
+    /**
+     * If set, non-null checks of values stored into fields or returned are
+     * left out if the value is certainly not null (see
+     * {@link NullnessAnalysis}). Only plain non-null checks are left out,
+     * deep checks are always performed. Methods without a store or return
+     * resolved as non-null at transformation time are not analysed.
+     *
+     * Set by default. Can be reset using the system property
+     * {@code de.matul.nonnull.elide} or the java agent argument "NOELIDE".
+     */
+    public static boolean ELIDE =
+            Boolean.parseBoolean(System.getProperty("de.matul.nonnull.elide", "true"));
+
     /**
      * The debug output directory. If transformed class files are to be saved,
      * it will be done to this direcory. Can be set using the system property
@@ -40,24 +106,343 @@ public class NonNullAgent {
     public static String DEBUG_OUTPUT_DIR =
             System.getProperty("de.matul.nonnull.debugdir", "/tmp/nonnullDebug");
 
+    /**
+     * The directory in which instrumented class files are cached across runs.
+     * If null, they are cached in memory only (see
+     * {@link InstrumentationCache}). Can be set using the system property
+     * {@code de.matul.nonnull.cachedir} or the java agent argument
+     * "CACHE=directory".
+     */
+    public static @Nullable String CACHE_DIR =
+            System.getProperty("de.matul.nonnull.cachedir");
+
+    /**
+     * The sampling rate of the checks. If greater than 1, the checker only
+     * performs a check on one in this many executions of a check site (on
+     * average). Sites are still resolved upon their first execution. Checks
+     * emitted inline (see {@link #INLINE}) still compare against null on every
+     * execution, only the call into the checker is sampled.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.sample}
+     * or the java agent argument "SAMPLE=n".
+     */
+    public static int SAMPLE_RATE = Integer.getInteger("de.matul.nonnull.sample", 1);
+
+    /**
+     * If set, violations do not throw a {@link NonNullError} but are written
+     * to this file (see {@link ViolationReporter}). Can be set using the system
+     * property {@code de.matul.nonnull.report} or the java agent argument
+     * "REPORT=file".
+     */
+    public static @Nullable String REPORT_FILE = System.getProperty("de.matul.nonnull.report");
+
+    /**
+     * If set, the checker counts the executions and violations of every site
+     * and the time spent in runtime resolution. The metrics are published as
+     * MBean (see {@link CheckerMetricsMXBean}). If set when attaching to a
+     * running VM, only the sites linked afterwards are counted.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.metrics}
+     * or the java agent argument "METRICS".
+     */
+    public static boolean METRICS = Boolean.getBoolean("de.matul.nonnull.metrics");
+
+    /**
+     * If set, the switches which turn checks off and on are published as
+     * MBean (see {@link CheckSwitchesMXBean}) when the agent starts.
+     * Otherwise the MBean is only registered once a switch is set using the
+     * java agent arguments "DISABLE" or "ENABLE".
+     *
+     * Can be set using the system property {@code de.matul.nonnull.switches}
+     * or the java agent argument "SWITCHES".
+     */
+    public static boolean SWITCHES = Boolean.getBoolean("de.matul.nonnull.switches");
+
+    /**
+     * The depth up to which deep non-null checks descend into nested arrays,
+     * collections, maps and optionals (see {@link TransitiveScan}). The
+     * default 1 only checks the elements of the value itself.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.deep.depth}
+     * or the java agent argument "DEPTH=n".
+     */
+    public static int DEEP_DEPTH = Integer.getInteger("de.matul.nonnull.deep.depth", 1);
+
+    /**
+     * The maximum number of times a single transitive deep check inspects a
+     * nested element, be it for null or for descending into it. If
+     * exhausted, the check passes. Defaults to 1000000.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.deep.budget}
+     * or the java agent argument "DEEP_BUDGET=n".
+     */
+    public static int DEEP_BUDGET = Integer.getInteger("de.matul.nonnull.deep.budget", 1000000);
+
+    /**
+     * The number of threads which scan large arrays and collections at deep
+     * non-null sites (see {@link ParallelScan}). If at most 1, they are
+     * scanned on the calling thread. Defaults to the number of processors.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.parallelism}
+     * or the java agent argument "PARALLEL=n".
+     */
+    public static int PARALLELISM = Integer.getInteger("de.matul.nonnull.parallelism",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of elements from which arrays and collections are scanned in
+     * parallel. Defaults to 1048576.
+     *
+     * Can be set using the system property
+     * {@code de.matul.nonnull.parallel.threshold} or the java agent argument
+     * "PARALLEL_THRESHOLD=n".
+     */
+    public static int PARALLEL_THRESHOLD =
+            Integer.getInteger("de.matul.nonnull.parallel.threshold", 1 << 20);
+
+    /**
+     * A file with further agent arguments, one or more per line. Empty lines
+     * and lines starting with "#" are ignored. The arguments in the file are
+     * processed before those given to the agent.
+     *
+     * Can be set using the system property {@code de.matul.nonnull.options}.
+     * The java agent argument "OPTIONS=file" reads a file in place.
+     */
+    public static @Nullable String OPTIONS_FILE = System.getProperty("de.matul.nonnull.options");
+
+    /**
+     * The transformers registered so far, together with the instrumentation
+     * they are registered with. Every attachment of the agent has its own
+     * instrumentation. There is at most one transformer; it is replaced if
+     * an attachment adds patterns. It is removed again by the agent argument
+     * "OFF".
+     */
+    private static final Map<NonNullTransformer, Instrumentation> transformers =
+            new LinkedHashMap<>();
+
+    /**
+     * The patterns of the classes to instrument given so far (see
+     * {@link ClassMatcher}).
+     */
+    private static final Set<String> patterns = new LinkedHashSet<>();
+
     /**
      * This is the entry point for the instrumentation. It adds a transformer
      * to the instrumentation.
      *
+     * All arguments which are not flags are patterns of the classes to
+     * instrument (see {@link ClassMatcher}). A single transformer
+     * instruments all classes matching them.
+     *
      * @param arg
      *            the argument passed to the agent on the commandline
      * @param instr
      *            the instrumentation to operate on.
      */
     public static void premain(String arg, Instrumentation instr) {
-        if(arg == null) {
+        configure(arg, instr);
+    }
+
+    /**
+     * This is the entry point if the agent is attached to a running VM. It
+     * takes the same arguments as {@link #premain(String, Instrumentation)}.
+     * Classes which are already loaded and match the given prefixes are
+     * retransformed.
+     *
+     * The argument "OFF" removes all transformers and retransforms the
+     * classes instrumented before. They are then back to their original
+     * class files. The other options given with "OFF" are applied, class
+     * patterns are ignored. The arguments "DISABLE", "ENABLE", "DISABLE=package" and
+     * "ENABLE=package" turn checks off and on without retransformation (see
+     * {@link CheckSwitches}).
+     *
+     * @param arg
+     *            the argument passed to the agent on attachment
+     * @param instr
+     *            the instrumentation to operate on.
+     */
+    public static void agentmain(String arg, Instrumentation instr) {
+        List<NonNullTransformer> added = configure(arg, instr);
+        // the checker may have been initialised before metrics were turned on
+        if(METRICS) {
+            CheckerMetrics.register();
+        }
+        retransform(instr, added);
+    }
+
+    /*
+     * Parse the arguments and register the transformer for the patterns.
+     * Returns the transformers which have been added.
+     */
+    private static synchronized List<NonNullTransformer> configure(@Nullable String arg,
+            Instrumentation instr) {
+        if(arg == null && OPTIONS_FILE == null) {
              throw new IllegalArgumentException("You need to provide a class prefix");
         }
-        for(String prefix : arg.split(" *, *")) {
+        List<String> arguments = new ArrayList<>();
+        if(OPTIONS_FILE != null) {
+            readOptions(OPTIONS_FILE, arguments);
+        }
+        if(arg != null) {
+            for(String prefix : arg.split(" *, *")) {
+                if(prefix.startsWith("OPTIONS=")) {
+                    readOptions(prefix.substring("OPTIONS=".length()), arguments);
+                } else {
+                    arguments.add(prefix);
+                }
+            }
+        }
+
+        List<String> prefixes = new ArrayList<>();
+        boolean off = false;
+        for(String prefix : arguments) {
             if(prefix.equals("VERBOSE")) {
                 VERBOSE = true;
+            } else if(prefix.equals("INLINE")) {
+                INLINE = true;
+            } else if(prefix.equals("NOINDY")) {
+                INDY = false;
+            } else if(prefix.equals("READS")) {
+                READS = true;
+            } else if(prefix.equals("BOUNDARY")) {
+                BOUNDARY = true;
+            } else if(prefix.equals("NOELIDE")) {
+                ELIDE = false;
+            } else if(prefix.equals("METRICS")) {
+                METRICS = true;
+            } else if(prefix.equals("SWITCHES")) {
+                SWITCHES = true;
+            } else if(prefix.equals("OFF")) {
+                off = true;
+            } else if(prefix.equals("DISABLE") || prefix.equals("ENABLE")) {
+                CheckSwitches.setEnabled(null, prefix.equals("ENABLE"));
+            } else if(prefix.startsWith("DISABLE=")) {
+                CheckSwitches.setEnabled(prefix.substring("DISABLE=".length()), false);
+            } else if(prefix.startsWith("ENABLE=")) {
+                CheckSwitches.setEnabled(prefix.substring("ENABLE=".length()), true);
+            } else if(prefix.startsWith("SAMPLE=")) {
+                SAMPLE_RATE = Integer.parseInt(prefix.substring("SAMPLE=".length()));
+            } else if(prefix.startsWith("DEPTH=")) {
+                DEEP_DEPTH = Integer.parseInt(prefix.substring("DEPTH=".length()));
+            } else if(prefix.startsWith("DEEP_BUDGET=")) {
+                DEEP_BUDGET = Integer.parseInt(prefix.substring("DEEP_BUDGET=".length()));
+            } else if(prefix.startsWith("PARALLEL=")) {
+                PARALLELISM = Integer.parseInt(prefix.substring("PARALLEL=".length()));
+            } else if(prefix.startsWith("PARALLEL_THRESHOLD=")) {
+                PARALLEL_THRESHOLD =
+                        Integer.parseInt(prefix.substring("PARALLEL_THRESHOLD=".length()));
+            } else if(prefix.startsWith("REPORT=")) {
+                REPORT_FILE = prefix.substring("REPORT=".length());
+            } else if(prefix.startsWith("CACHE=")) {
+                CACHE_DIR = prefix.substring("CACHE=".length());
             } else {
-                instr.addTransformer(new NonNullTransformer(prefix));
+                prefixes.add(prefix);
+            }
+        }
+
+        if(SWITCHES) {
+            CheckSwitches.register();
+        }
+
+        if(off) {
+            if(!prefixes.isEmpty()) {
+                System.err.println("Class patterns ignored since the agent is turned off: " +
+                        prefixes);
+            }
+            patterns.clear();
+            return removeTransformers();
+        }
+
+        if(!patterns.addAll(prefixes)) {
+            return Collections.emptyList();
+        }
+
+        // one transformer for all patterns such that no class is
+        // instrumented twice
+        removeTransformers();
+        // the cache key depends on the flags set above
+        InstrumentationCache cache = new InstrumentationCache(CACHE_DIR);
+        NonNullTransformer transformer =
+                new NonNullTransformer(ClassMatcher.compile(patterns), cache);
+        // no class may be loaded after the transformer has been added
+        List<NonNullTransformer> added = Collections.singletonList(transformer);
+        transformers.put(transformer, instr);
+        instr.addTransformer(transformer, instr.isRetransformClassesSupported());
+        return added;
+    }
+
+    /*
+     * Add the arguments in an options file.
+     */
+    private static void readOptions(String file, List<String> arguments) {
+        try {
+            for (String line : Files.readAllLines(Paths.get(file))) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                for (String option : line.split(" *, *")) {
+                    arguments.add(option);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read the agent options from " + file, e);
+        }
+    }
+
+    private static List<NonNullTransformer> removeTransformers() {
+        for (Map.Entry<NonNullTransformer, Instrumentation> entry : transformers.entrySet()) {
+            entry.getValue().removeTransformer(entry.getKey());
+        }
+        List<NonNullTransformer> removed = new ArrayList<>(transformers.keySet());
+        transformers.clear();
+        return removed;
+    }
+
+    /*
+     * Retransform all loaded classes which one of the transformers applies to.
+     * If the transformers are registered, the classes are instrumented, if
+     * they have been removed, they get their original class files back.
+     */
+    private static void retransform(Instrumentation instr,
+            List<NonNullTransformer> affected) {
+        if(affected.isEmpty()) {
+            return;
+        }
+
+        if(!instr.isRetransformClassesSupported()) {
+            System.err.println("Retransformation not supported, " +
+                    "already loaded classes remain unchanged");
+            return;
+        }
+
+        // hidden classes are not modifiable, other generated classes are
+        // excluded by the class matcher
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> clazz : instr.getAllLoadedClasses()) {
+            if(!instr.isModifiableClass(clazz)) {
+                continue;
+            }
+            String className = clazz.getName().replace('.', '/');
+            for (NonNullTransformer transformer : affected) {
+                if(transformer.applies(className)) {
+                    classes.add(clazz);
+                    break;
+                }
+            }
+        }
+
+        debug("Retransforming %d classes", classes.size());
+        try {
+            instr.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (Throwable e) {
+            // retransform one by one such that one class does not prevent others
+            for (Class<?> clazz : classes) {
+                try {
+                    instr.retransformClasses(clazz);
+                } catch (Throwable e1) {
+                    System.err.println("Cannot retransform " + clazz.getName() + ": " + e1);
+                }
             }
         }
     }
@@ -97,85 +482,3 @@ public class NonNullAgent {
     }
 }
 
-/**
- * The transformer which actually triggers the transformation.
- */
-class NonNullTransformer implements ClassFileTransformer {
-
-    /**
-     * The package prefix for which classes are to be modified.
-     */
-    private final String prefix;
-
-    /**
-     * Instantiates a new transformer.
-     *
-     * @param arg
-     *            the package/class prefix to be considered
-     */
-    public NonNullTransformer(String arg) {
-        this.prefix = arg.replace('.', '/');
-    }
-
-    /*
-     * Transform the class:
-     * - instrument it with non-null check instructions
-     * - write the class file to temp directory if debug is on
-     */
-    @Override
-    public byte[] transform(ClassLoader loader, String className,
-            Class<?> cl, ProtectionDomain pd, byte[] data) {
-        try {
-            // anonymously created classes have no class name, bail out
-            if(className == null) {
-                return null;
-            }
-
-            if(!prefix.equals("ALL") && !className.startsWith(prefix)) {
-                return null;
-            }
-
-            NonNullAgent.debug("Instrumenting class: %s", className);
-            NonNullAgent.debug("Existing class: %s", cl);
-
-            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-            NonNullClassVisitor inspector = new NonNullClassVisitor(writer);
-            ClassReader reader = new ClassReader(data);
-            reader.accept(inspector, 0);
-            byte[] result = writer.toByteArray();
-
-            if(NonNullAgent.VERBOSE) {
-                File file = new File(NonNullAgent.DEBUG_OUTPUT_DIR, className + ".class");
-                file.getParentFile().mkdirs();
-                FileOutputStream fw = new FileOutputStream(
-                        file);
-                fw.write(result);
-                fw.close();
-                NonNullAgent.debug("Successfully finished instrumenting " + className);
-            }
-
-            if(inspector.noChecks) {
-                NonNullAgent.debug("Leaving data untouched for " + className);
-                return null;
-            }
-
-            return result;
-        } catch (Throwable e) {
-            System.err.println("Error while transforming " + className);
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    /* For test purposes */
-    public static void main(String[] args) throws Exception {
-        NonNullTransformer tr = new NonNullTransformer("");
-        String className = args[0];
-        Class<?> clazz = Class.forName(className);
-        InputStream is = NonNullTransformer.class.
-                getResourceAsStream("/" + className.replace('.', '/') + ".class");
-        byte[] code = Util.drainStream(is);
-        tr.transform(NonNullTransformer.class.getClassLoader(), className,
-                clazz, null, code);
-    }
-}
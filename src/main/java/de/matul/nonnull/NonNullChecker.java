@@ -7,7 +7,22 @@
  */
 package de.matul.nonnull;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import de.matul.nonnull.NonNullResolver.AnnotationType;
 
@@ -17,45 +32,137 @@ import nonnull.Nullable;
 @NoNullnessChecks
 public final class NonNullChecker {
 
-    private static class Entry {
+    /**
+     * The description of a checked contract: a parameter or the result of a
+     * method, or a field. All sites of a class loader checking the same
+     * contract share one entry (see {@link Scope#entry}).
+     */
+    private static class Entry extends ViolationReporter.Site {
         private final String classDesc;
         private final String name;
         private final String methodDesc;
         private final int paramNumber;
         private @Nullable AnnotationType toCheck;
+        /** null unless metrics are collected */
+        private final @Nullable CheckerMetrics.Counters counters;
+        private final CheckSwitches.Switch checkSwitch;
+        private final Scope scope;
 
-        private Entry(String classDesc, String name, String methodDesc,
-                int paramNumber) {
+        private Entry(Scope scope, String classDesc, String name, @Nullable String methodDesc,
+                int paramNumber, @Nullable AnnotationType toCheck, boolean counted) {
             super();
-            this.classDesc = classDesc;
-            this.name = name;
-            this.methodDesc = methodDesc;
+            this.scope = scope;
+            this.classDesc = scope.intern(classDesc);
+            this.name = scope.intern(name);
+            this.methodDesc = scope.intern(methodDesc);
             this.paramNumber = paramNumber;
-        }
-
-        private Entry(String classDesc, String name) {
-            super();
-            this.classDesc = classDesc;
-            this.name = name;
-            this.methodDesc = null;
-            this.paramNumber = -2;
+            this.toCheck = toCheck;
+            this.checkSwitch = CheckSwitches.forClass(classDesc);
+            this.counters = counted && NonNullAgent.METRICS ?
+                    CheckerMetrics.newCounters(classDesc, toString()) : null;
         }
 
         @Override public String toString() {
             return classDesc + "." + name + "#" + methodDesc + "/" + paramNumber;
         }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return classDesc.equals(other.classDesc) && name.equals(other.name) &&
+                    Objects.equals(methodDesc, other.methodDesc) &&
+                    paramNumber == other.paramNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(classDesc, name, methodDesc, paramNumber);
+        }
+
+        @Override
+        String describe(@Nullable String detail) {
+            String className = classDesc.replace('/', '.');
+            if(detail == null) {
+                if(paramNumber == -3) {
+                    return "null value read from the non-null field " + className + "." + name;
+                } else if(paramNumber == -2) {
+                    return "null value for the non-null field " + className + "." + name;
+                } else if(paramNumber == -1) {
+                    return "null result value in non-null method " + className + "." +
+                            name + Util.getMethodSignature(methodDesc);
+                } else {
+                    return "null value in non-null parameter number " + (paramNumber+1) +
+                            " in method " + className + "." + name +
+                            Util.getMethodSignature(methodDesc);
+                }
+            } else {
+                if(paramNumber <= -2) {
+                    return "embedded null value for the non-null field " + className + "." +
+                            name + ": " + detail;
+                } else if(paramNumber == -1) {
+                    return "embedded null result value in non-null method " + className +
+                            "." + name + Util.getMethodSignature(methodDesc) + ": " + detail;
+                } else {
+                    return "null value in non-null parameter number " + (paramNumber+1) +
+                            " in method " + className + "." + name +
+                            Util.getMethodSignature(methodDesc) + ": " + detail;
+                }
+            }
+        }
+    }
+
+    private static final MethodHandle RESOLVE_AND_CHECK;
+    private static final MethodHandle VERIFY_NON_NULL;
+    private static final MethodHandle VERIFY_DEEP_NON_NULL;
+    private static final MethodHandle SAMPLED;
+    private static final MethodHandle INCREMENT;
+    private static final MethodHandle NO_CHECK =
+            MethodHandles.empty(MethodType.methodType(void.class, Object.class));
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType verifyType =
+                    MethodType.methodType(void.class, Entry.class, Object.class);
+            RESOLVE_AND_CHECK = lookup.findVirtual(CheckCallSite.class, "resolveAndCheck",
+                    MethodType.methodType(void.class, Object.class));
+            VERIFY_NON_NULL = lookup.findStatic(NonNullChecker.class,
+                    "verifyNonNull", verifyType);
+            VERIFY_DEEP_NON_NULL = lookup.findStatic(NonNullChecker.class,
+                    "verifyDeepNonNull", verifyType);
+            SAMPLED = MethodHandles.dropArguments(lookup.findStatic(NonNullChecker.class,
+                    "sampled", MethodType.methodType(boolean.class)), 0, Object.class);
+            INCREMENT = lookup.findVirtual(LongAdder.class, "increment",
+                    MethodType.methodType(void.class));
+            if(NonNullAgent.METRICS) {
+                CheckerMetrics.register();
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new NonNullError("Error while initialising NonNullChecker", e);
+        }
     }
 
     /**
-     * This resolves a method/field access
+     * The number of executions until the next sampled check, per thread (see
+     * {@link NonNullAgent#SAMPLE_RATE}).
      */
-    private static final NonNullResolver resolver = new NonNullResolver();
-    
+    private static final ThreadLocal<int[]> sampleCountdown =
+            ThreadLocal.withInitial(() -> new int[1]);
+
     /**
-     * The number of the next unsed index in checkerMap. It is atomic such that
-     * more threads can accesss the checker at once.
+     * The number of the last reserved index in checkerMap. It is atomic such
+     * that more threads can accesss the checker at once.
      */
     private static AtomicInteger number = new AtomicInteger();
+
+    /**
+     * The first indices of the blocks of reclaimed scopes. They are reserved
+     * again before fresh indices are used.
+     */
+    private static final Queue<Integer> freeBlocks = new ConcurrentLinkedQueue<>();
     
     /**
      * This map stores information about method calls/field accesses in an
@@ -63,36 +170,263 @@ public final class NonNullChecker {
      * 
      * The {@code register...} methods add {@link Entry} objects to the map and
      * the check method eventually adds the check information or removes the
-     * entry.
+     * entry. The slots of unloaded class loaders are cleared and reused (see
+     * {@link Scope}).
      */
     private static DynamicArray<Entry> checkerMap =
             new DynamicArray<Entry>();
 
-    static int registerArgumentCheck(String className, String methodName, String methDesc,
-            int paramNumber) {
-        int result = getFreshIndex();
-        checkerMap.put(result, new Entry(className, methodName, methDesc, paramNumber));
+    /**
+     * Rough sizes in bytes for {@link #getRegistryFootprint()}: an entry with
+     * its node in the entries of its scope, the counters of an entry, and a
+     * string (without its characters) with its node in the string pool.
+     */
+    private static final int ENTRY_SIZE = 88;
+    private static final int COUNTERS_SIZE = 80;
+    private static final int STRING_SIZE = 72;
+
+    /**
+     * The scopes of class loaders which have become unreachable.
+     */
+    private static final ReferenceQueue<ClassLoader> reclaimed = new ReferenceQueue<>();
+
+    /**
+     * The scope of the bootstrap loader, never reclaimed.
+     */
+    private static final Scope BOOT_SCOPE = new Scope(null);
+
+    /**
+     * The scopes of the class loaders not yet reclaimed. A scope is its own
+     * key; it is looked up using a {@link LoaderKey}. The map keeps the
+     * scopes reachable until they are taken from {@link #reclaimed}.
+     */
+    private static final Map<Object, Scope> scopes = new ConcurrentHashMap<>();
+
+    /**
+     * The sites registered for the classes of one class loader: the entries,
+     * their strings, the blocks of indices reserved in the checker map, and
+     * the resolver for the annotations of the sites.
+     *
+     * A scope only refers weakly to its loader. Once the loader has become
+     * unreachable, no class of it can run a check anymore. Then the slots of
+     * the scope are cleared and its blocks are reused (see {@link #reclaim()}).
+     */
+    private static final class Scope extends WeakReference<ClassLoader> {
+        /** The entries of the sites, one per contract */
+        private final Map<Entry, Entry> entries = new ConcurrentHashMap<>();
+        /** The pool of the strings of the entries */
+        private final Map<String, String> strings = new ConcurrentHashMap<>();
+        private final LongAdder stringBytes = new LongAdder();
+        /** The first indices of the blocks reserved for this scope */
+        private final Queue<Integer> blocks = new ConcurrentLinkedQueue<>();
+        private final NonNullResolver resolver;
+        private final int hash;
+
+        private Scope(@Nullable ClassLoader loader) {
+            super(loader, loader == null ? null : reclaimed);
+            this.resolver = new NonNullResolver(loader);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        /*
+         * Get the shared entry of a contract. Only the entry which makes it
+         * into the map is counted in the metrics, such that every contract is
+         * counted once.
+         */
+        private Entry entry(String classDesc, String name, @Nullable String methodDesc,
+                int paramNumber, @Nullable AnnotationType toCheck) {
+            Entry key = new Entry(this, classDesc, name, methodDesc, paramNumber, null, false);
+            Entry result = entries.get(key);
+            if(result == null) {
+                Entry fresh = new Entry(this, classDesc, name, methodDesc,
+                        paramNumber, toCheck, true);
+                result = entries.putIfAbsent(fresh, fresh);
+                if(result == null) {
+                    result = fresh;
+                    if(fresh.counters != null) {
+                        CheckerMetrics.addSite(fresh.counters, toCheck != null);
+                    }
+                }
+            }
+            if(result.toCheck == null && toCheck != null) {
+                result.toCheck = toCheck;
+                if(result.counters != null) {
+                    CheckerMetrics.resolvedByTransformation(result.counters);
+                }
+            }
+            return result;
+        }
+
+        private @Nullable String intern(@Nullable String string) {
+            if(string == null) {
+                return null;
+            }
+            String result = strings.putIfAbsent(string, string);
+            if(result == null) {
+                stringBytes.add(STRING_SIZE + string.length());
+                return string;
+            }
+            return result;
+        }
+
+        private long footprint() {
+            long entrySize = ENTRY_SIZE + (NonNullAgent.METRICS ? COUNTERS_SIZE : 0);
+            return entries.size() * entrySize + stringBytes.sum();
+        }
+
+        /*
+         * Scopes are equal if they belong to the same loader. Once the loader
+         * has been collected, a scope is only equal to itself.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if(obj == this) {
+                return true;
+            }
+            ClassLoader loader = get();
+            if(loader == null) {
+                return false;
+            }
+            if(obj instanceof Scope) {
+                return ((Scope) obj).get() == loader;
+            }
+            return obj instanceof LoaderKey && ((LoaderKey) obj).loader == loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The key to look up the scope of a loader in {@link #scopes}.
+     */
+    private static final class LoaderKey {
+        private final ClassLoader loader;
+
+        private LoaderKey(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Scope && ((Scope) obj).get() == loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+    }
+
+    /*
+     * Get the scope of a class loader, null for the bootstrap loader. If two
+     * threads create the scope of a loader at once, only one is kept.
+     */
+    private static Scope scope(@Nullable ClassLoader loader) {
+        if(loader == null) {
+            return BOOT_SCOPE;
+        }
+        Scope result = scopes.get(new LoaderKey(loader));
+        if(result == null) {
+            Scope fresh = new Scope(loader);
+            result = scopes.putIfAbsent(fresh, fresh);
+            if(result == null) {
+                result = fresh;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Reserve a block of indices for a scope. Blocks of reclaimed scopes are
+     * used first.
+     */
+    private static int reserveBlock(Scope scope) {
+        reclaim();
+        Integer free = freeBlocks.poll();
+        int result = free != null ? free : number.getAndAdd(IndexBlock.BLOCK_SIZE) + 1;
+        scope.blocks.add(result);
+        return result;
+    }
+
+    /*
+     * Clear the slots of the scopes whose loaders have become unreachable,
+     * free their blocks and retire the counters of their entries. No class
+     * of such a loader can reserve blocks or create entries anymore.
+     */
+    private static void reclaim() {
+        Reference<? extends ClassLoader> ref;
+        while((ref = reclaimed.poll()) != null) {
+            Scope scope = (Scope) ref;
+            scopes.remove(scope);
+            for (int start : scope.blocks) {
+                for (int i = start; i < start + IndexBlock.BLOCK_SIZE; i++) {
+                    checkerMap.remove(i);
+                }
+            }
+            freeBlocks.addAll(scope.blocks);
+            for (Entry entry : scope.entries.keySet()) {
+                if(entry.counters != null) {
+                    CheckerMetrics.retire(entry.counters);
+                }
+            }
+            NonNullAgent.debug("Reclaimed %d blocks with %d entries of an unloaded class loader",
+                    scope.blocks.size(), scope.entries.size());
+        }
+    }
+
+    /**
+     * Get the number of class loaders with registered sites, not counting the
+     * bootstrap loader. The scopes of collected loaders are reclaimed first.
+     *
+     * @return the number of scopes
+     */
+    static int getScopeCount() {
+        reclaim();
+        return scopes.size();
+    }
+
+    /*
+     * The register methods take the annotation if it is already known at
+     * transformation time. If null is passed, the annotation is resolved upon
+     * the first check.
+     */
+
+    static int registerArgumentCheck(IndexBlock indices, String className,
+            String methodName, String methDesc, int paramNumber,
+            @Nullable AnnotationType toCheck) {
+        int result = indices.nextIndex();
+        Entry entry = indices.scope().entry(className, methodName, methDesc, paramNumber, toCheck);
+        checkerMap.put(result, entry);
         NonNullAgent.debug("Registering entry no. %d", result);
         return result;
     }
 
-    static int registerGetFieldCheck(String className, String fieldName) {
-        int result = getFreshIndex();
-        checkerMap.put(result, new Entry(className, fieldName));
+    static int registerGetFieldCheck(IndexBlock indices, String className,
+            String fieldName, @Nullable AnnotationType toCheck) {
+        int result = indices.nextIndex();
+        Entry entry = indices.scope().entry(className, fieldName, null, -3, toCheck);
+        checkerMap.put(result, entry);
+        NonNullAgent.debug("Registering entry no. %d: %s", result, entry);
         return result;
     }
 
-    static int registerPutFieldCheck(String className, String fieldName) {
-        int result = getFreshIndex();
-        Entry entry = new Entry(className, fieldName);
+    static int registerPutFieldCheck(IndexBlock indices, String className,
+            String fieldName, @Nullable AnnotationType toCheck) {
+        int result = indices.nextIndex();
+        Entry entry = indices.scope().entry(className, fieldName, null, -2, toCheck);
         checkerMap.put(result, entry);
         NonNullAgent.debug("Registering entry no. %d: %s", result, entry);
         return result;
     }
 
-    static int registerReturnCheck(String className, String methodName, String methDesc) {
-        int result = getFreshIndex();
-        checkerMap.put(result, new Entry(className, methodName, methDesc, -1));
+    static int registerReturnCheck(IndexBlock indices, String className,
+            String methodName, String methDesc, @Nullable AnnotationType toCheck) {
+        int result = indices.nextIndex();
+        Entry entry = indices.scope().entry(className, methodName, methDesc, -1, toCheck);
+        checkerMap.put(result, entry);
         return result;
     }
 
@@ -105,51 +439,27 @@ public final class NonNullChecker {
             return;
         }
 
+        if(!CheckSwitches.isEnabled(entry.checkSwitch)) {
+            return;
+        }
+
+        if(entry.counters != null) {
+            entry.counters.executions.increment();
+        }
+
         AnnotationType check = entry.toCheck;
         if(check == null) {
             // no check has been determined yet.
-            check = resolver.shouldCheckMethod(entry.classDesc, entry.name, 
-                    entry.methodDesc, entry.paramNumber);
-            if(check != AnnotationType.NON_NULL && check != AnnotationType.DEEP_NON_NULL) {
-                checkerMap.remove(index);
-                return;
-            }
+            check = resolve(entry);
             entry.toCheck = check;
         }
-
-
-        if(value == null) {
-            String errMsg;
-            if(entry.paramNumber == -1) {
-                errMsg = "null result value in non-null method " +
-                        entry.classDesc.replace('/', '.') + "." + entry.name +
-                        Util.getMethodSignature(entry.methodDesc);
-            } else {
-                errMsg = "null value in non-null parameter number "
-                        + (entry.paramNumber+1) +
-                        " in method " + entry.classDesc.replace('/', '.') + "."
-                        + entry.name + Util.getMethodSignature(entry.methodDesc);
-            }
-            throw new NonNullError(errMsg);
+        if(!isChecked(check)) {
+            checkerMap.remove(index);
+            return;
         }
 
-        if(check == AnnotationType.DEEP_NON_NULL) {
-            String result = checkDeepNonNull(value);
-            if(result != null) {
-                String errMsg;
-                if(entry.paramNumber == -1) {
-                    errMsg = "embedded null result value in non-null method " +
-                            entry.classDesc.replace('/', '.') + "." + entry.name +
-                            Util.getMethodSignature(entry.methodDesc) + ": " + result;
-                } else {
-                    errMsg = "null value in non-null parameter number "
-                            + (entry.paramNumber+1) +
-                            " in method " + entry.classDesc.replace('/', '.') + "."
-                            + entry.name + Util.getMethodSignature(entry.methodDesc) +
-                            ": " + result;
-                }
-                throw new NonNullError(errMsg);
-            }
+        if(sampled()) {
+            verify(entry, check, value);
         }
     }
 
@@ -164,63 +474,327 @@ public final class NonNullChecker {
             return;
         }
 
+        if(!CheckSwitches.isEnabled(entry.checkSwitch)) {
+            return;
+        }
+
+        if(entry.counters != null) {
+            entry.counters.executions.increment();
+        }
+
         AnnotationType check = entry.toCheck;
         if(check == null) {
             // no check has been determined yet.
-            check = resolver.shouldCheckField(entry.classDesc, entry.name);
+            check = resolve(entry);
             NonNullAgent.debug("Computed check for %s: %s", entry, check);
-            if(check != AnnotationType.NON_NULL && check != AnnotationType.DEEP_NON_NULL) {
-                checkerMap.remove(index);
-                return;
-            }
             entry.toCheck = check;
         }
+        if(!isChecked(check)) {
+            checkerMap.remove(index);
+            return;
+        }
 
-        if(value == null) {
-            String errMsg = "null value for the non-null field " +
-                    entry.classDesc.replace('/', '.') + "." + entry.name;
-            throw new NonNullError(errMsg);
+        if(sampled()) {
+            verify(entry, check, value);
         }
+    }
 
-        if(check == AnnotationType.DEEP_NON_NULL) {
-            String result = checkDeepNonNull(value);
-            if(result != null) {
-                String errMsg = "embedded null value for the non-null field " +
-                        entry.classDesc.replace('/', '.') + "." + entry.name + ": " + result;
-                throw new NonNullError(errMsg);
+    /**
+     * The bootstrap method for check sites which use invokedynamic instead of
+     * an index into the checker map.
+     *
+     * The returned call site takes the value to check. Its target is a no-op
+     * if no check is needed, a null test for non-null sites and a deep check
+     * for deep non-null sites. If the annotation has not been resolved at
+     * transformation time, it is resolved on the first invocation, after which
+     * the call site relinks itself.
+     *
+     * @param lookup
+     *            the lookup of the calling class
+     * @param name
+     *            the name of the call site (ignored)
+     * @param type
+     *            the type of the call site, {@code (Object)void}
+     * @param className
+     *            the internal name of the class declaring the method or field
+     * @param memberName
+     *            the name of the method or field
+     * @param methodDesc
+     *            the descriptor of the method, empty for fields
+     * @param paramNumber
+     *            the parameter number, -1 for results, -2 for field stores, -3
+     *            for field reads
+     * @param toCheck
+     *            the ordinal of the resolved annotation type, -1 if unknown
+     * @return the freshly created call site
+     */
+    public static CallSite bootstrapCheck(MethodHandles.Lookup lookup, String name,
+            MethodType type, String className, String memberName, String methodDesc,
+            int paramNumber, int toCheck) {
+        AnnotationType check = toCheck >= 0 ? AnnotationType.values()[toCheck] : null;
+        Entry entry = scope(lookup.lookupClass().getClassLoader()).entry(className, memberName,
+                paramNumber <= -2 ? null : methodDesc, paramNumber, check);
+        CheckCallSite site = new CheckCallSite(entry, type);
+        NonNullAgent.debug("Bootstrapped check site %s", entry);
+        return site;
+    }
+
+    /**
+     * A call site for a single check. It initially points to
+     * {@link #resolveAndCheck(Object)} and is relinked once the annotation is
+     * known. The target is guarded by the switches of {@link CheckSwitches}.
+     */
+    private static final class CheckCallSite extends MutableCallSite
+            implements CheckSwitches.Site {
+
+        private final Entry entry;
+
+        private CheckCallSite(Entry entry, MethodType type) {
+            super(type);
+            this.entry = entry;
+            link();
+        }
+
+        @SuppressWarnings("unused") // called via RESOLVE_AND_CHECK
+        private void resolveAndCheck(Object value) {
+            AnnotationType check = entry.toCheck;
+            if(check == null) {
+                check = resolve(entry);
+                entry.toCheck = check;
+            }
+            link();
+            if(isChecked(check) && CheckSwitches.isEnabled(entry.checkSwitch)) {
+                verify(entry, check, value);
             }
         }
 
+        @Override
+        public void link() {
+            AnnotationType check = entry.toCheck;
+            MethodHandle target = check == null ?
+                    RESOLVE_AND_CHECK.bindTo(this) : target(entry, check);
+            setTarget(CheckSwitches.guard(entry.checkSwitch, this,
+                    counted(entry, target), NO_CHECK).asType(type()));
+        }
+    }
+
+    private static MethodHandle target(Entry entry, AnnotationType check) {
+        MethodHandle verify;
+        switch(check) {
+        case NON_NULL:
+            verify = VERIFY_NON_NULL.bindTo(entry);
+            break;
+        case DEEP_NON_NULL:
+            verify = VERIFY_DEEP_NON_NULL.bindTo(entry);
+            break;
+        default:
+            return NO_CHECK;
+        }
+        if(NonNullAgent.SAMPLE_RATE > 1) {
+            verify = MethodHandles.guardWithTest(SAMPLED, verify, NO_CHECK);
+        }
+        return verify;
+    }
+
+    /*
+     * If metrics are collected, the site counts its executions first.
+     */
+    private static MethodHandle counted(Entry entry, MethodHandle target) {
+        if(entry.counters == null) {
+            return target;
+        }
+        return MethodHandles.foldArguments(target,
+                INCREMENT.bindTo(entry.counters.executions));
+    }
+
+    /*
+     * Decide whether this execution of a check is sampled. Every thread counts
+     * down to its next sampled check. The distance is drawn at random with
+     * mean SAMPLE_RATE such that sites executed in a fixed pattern are not
+     * skipped systematically.
+     */
+    private static boolean sampled() {
+        int rate = NonNullAgent.SAMPLE_RATE;
+        if(rate <= 1) {
+            return true;
+        }
+        int[] countdown = sampleCountdown.get();
+        if(--countdown[0] > 0) {
+            return false;
+        }
+        countdown[0] = 1 + ThreadLocalRandom.current().nextInt(2 * rate - 1);
+        return true;
+    }
+
+    /*
+     * Resolve the annotation of a site through the resolver of its scope,
+     * i.e. through the defining loader of the class with the site.
+     */
+    private static AnnotationType resolve(Entry entry) {
+        long start = entry.counters == null ? 0 : System.nanoTime();
+        AnnotationType result;
+        if(entry.paramNumber <= -2) {
+            result = entry.scope.resolver.shouldCheckField(entry.classDesc, entry.name);
+        } else {
+            result = entry.scope.resolver.shouldCheckMethod(entry.classDesc, entry.name,
+                    entry.methodDesc, entry.paramNumber);
+        }
+        if(entry.counters != null) {
+            CheckerMetrics.resolved(entry.counters, System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private static boolean isChecked(AnnotationType check) {
+        return check == AnnotationType.NON_NULL || check == AnnotationType.DEEP_NON_NULL;
     }
 
-    // TODO have a more sophisticated plugin mechanism where people can add their implementations
+    private static void verify(Entry entry, AnnotationType check, Object value) {
+        if(check == AnnotationType.DEEP_NON_NULL) {
+            verifyDeepNonNull(entry, value);
+        } else {
+            verifyNonNull(entry, value);
+        }
+    }
+
+    private static void verifyNonNull(Entry entry, Object value) {
+        if(value == null) {
+            violation(entry, null);
+        }
+    }
+
+    private static void verifyDeepNonNull(Entry entry, Object value) {
+        if(value == null) {
+            violation(entry, null);
+            return;
+        }
+
+        String result = checkDeepNonNull(value);
+        if(result != null) {
+            violation(entry, result);
+        }
+    }
+
+    /*
+     * Throw the error, or in report mode hand the violation to the reporter.
+     */
+    private static void violation(Entry entry, @Nullable String detail) {
+        if(entry.counters != null) {
+            entry.counters.violations.increment();
+        }
+        boolean report = NonNullAgent.REPORT_FILE != null;
+        NonNullEvents.Violation event = new NonNullEvents.Violation();
+        if(event.shouldCommit()) {
+            event.site = entry.toString();
+            event.message = entry.describe(detail);
+            event.reported = report;
+            event.commit();
+        }
+
+        if(report) {
+            ViolationReporter.report(entry, detail);
+        } else {
+            throw new NonNullError(entry.describe(detail));
+        }
+    }
+
+    /*
+     * The checkers are selected per class by DeepCheckers. Immutable values
+     * which have been checked before are not checked again. Nested values may
+     * be mutable, hence the cache is not used for transitive checks.
+     */
     private static @Nullable String checkDeepNonNull(Object value) {
-        
-        if (value instanceof Object[]) {
-            Object[] array = (Object[]) value;
-            for (int i = 0; i < array.length; i++) {
-                if(array[i] == null) {
-                    return "array index [" + i + "]";
-                }
-            }
+        if(NonNullAgent.DEEP_DEPTH > 1) {
+            return TransitiveScan.findNull(value, NonNullAgent.DEEP_DEPTH);
         }
-        
-        if (value instanceof Iterable<?>) {
-            Iterable<?> iterable = (Iterable<?>) value;
-            int pos = 0;
-            for (Object object : iterable) {
-                if(object == null) {
-                    return "iteration index " + pos;
-                }
-                pos ++;
-            }
+        if(VerifiedCache.isVerified(value)) {
+            return null;
+        }
+        String result = DeepCheckers.findNull(value);
+        if(result == null) {
+            VerifiedCache.verified(value);
         }
-        
-        return null;
+        return result;
     }
 
-    private static int getFreshIndex() {
-        return number.incrementAndGet();
+    /**
+     * Get the number of allocated slots in the checker map.
+     *
+     * @return the allocated size of the map
+     */
+    static long getRegistrySlots() {
+        return checkerMap.getAllocatedSize();
+    }
+
+    /**
+     * Estimate the memory used by the checker map, the entries and their
+     * strings. Every slot of the map is a reference of 4 bytes (assuming
+     * compressed references) to a shared entry.
+     *
+     * @return the estimated size in bytes
+     */
+    static long getRegistryFootprint() {
+        reclaim();
+        long result = getRegistrySlots() * 4 + BOOT_SCOPE.footprint();
+        for (Scope scope : scopes.values()) {
+            result += scope.footprint();
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the memory used by the entries and strings of the sites of one
+     * class loader (see {@link #getRegistryFootprint()}).
+     *
+     * @param loader
+     *            the class loader, null for the bootstrap loader
+     * @return the estimated size in bytes
+     */
+    static long getScopeFootprint(@Nullable ClassLoader loader) {
+        return scope(loader).footprint();
+    }
+
+    /**
+     * A block of indices reserved for the registrations during one
+     * transformation. Indices are reserved in bulk such that concurrent
+     * transformations do not contend on {@link #number}. The blocks belong
+     * to the scope of the defining loader of the class under transformation.
+     *
+     * An index block must only be used by one thread.
+     */
+    static final class IndexBlock {
+
+        private static final int BLOCK_SIZE = 64;
+
+        private final @Nullable ClassLoader loader;
+        private @Nullable Scope scope;
+
+        private int next;
+        private int end;
+
+        /**
+         * @param loader
+         *            the defining loader of the class under transformation,
+         *            null for the bootstrap loader
+         */
+        IndexBlock(@Nullable ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        private Scope scope() {
+            if(scope == null) {
+                scope = NonNullChecker.scope(loader);
+            }
+            return scope;
+        }
+
+        int nextIndex() {
+            if(next == end) {
+                next = reserveBlock(scope());
+                end = next + BLOCK_SIZE;
+            }
+            return next++;
+        }
     }
 
 }
@@ -1,20 +1,61 @@
 package de.matul.nonnull;
 
+import java.util.Arrays;
+import java.util.List;
+
+import nonnull.Nullable;
+
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
 
 class NonNullClassVisitor extends ClassVisitor implements Opcodes {
 
     public static final String NOCHECKS_ANN = "Lnonnull/NoNullnessChecks;";
 
     boolean noChecks;
+
+    /**
+     * The number of checks inserted into the class
+     */
+    int checkCount;
+
+    /**
+     * The number of checks left out since the analysis found the value to be
+     * certainly not null
+     */
+    int elidedCount;
+
+    /**
+     * The indices reserved for the checks registered during this
+     * transformation
+     */
+    final NonNullChecker.IndexBlock indices;
+
+    /**
+     * If not null, a description of every inserted check is added to this
+     * list (see {@link NonNullOffline}).
+     */
+    @Nullable List<String> siteTable;
+
     private String className;
+    private int version;
+    private boolean isPublic;
+    private final BytecodeResolver resolver;
 
-    public NonNullClassVisitor(ClassWriter writer) {
+    public NonNullClassVisitor(ClassWriter writer, BytecodeResolver resolver) {
         super(Opcodes.ASM9, writer);
+        this.resolver = resolver;
+        this.indices = new NonNullChecker.IndexBlock(resolver.getLoader());
     }
 
     @Override
@@ -22,6 +63,8 @@ class NonNullClassVisitor extends ClassVisitor implements Opcodes {
             String superName, String[] interfaces) {
         super.visit(version, access, name, signature, superName, interfaces);
         this.className = name;
+        this.version = version & 0xFFFF;
+        this.isPublic = (access & ACC_PUBLIC) != 0;
     }
 
     @Override
@@ -46,8 +89,80 @@ class NonNullClassVisitor extends ClassVisitor implements Opcodes {
             return mv;
         }
 
+        // Inlining needs stack map frames from version 50 on. Version 50
+        // class files may contain JSR instructions which cannot be analysed.
+        boolean inline = NonNullAgent.INLINE && version != V1_6;
+        boolean reads = NonNullAgent.READS && version != V1_6;
+        AnalyzerAdapter analyzer = null;
+        if((inline || reads) && version > V1_6) {
+            analyzer = new AnalyzerAdapter(className, access, name, desc, mv);
+            mv = analyzer;
+        }
+
+        boolean indy = NonNullAgent.INDY && version >= V1_7;
+
         boolean isStatic = (access & ACC_STATIC) != 0;
-        return new NonNullMethodVisitor(mv, isStatic, className, name, desc);
+        boolean checkContract = !NonNullAgent.BOUNDARY ||
+                isPublic && (access & (ACC_PUBLIC | ACC_PROTECTED)) != 0;
+        NonNullMethodVisitor checks = new NonNullMethodVisitor(mv, this, resolver,
+                inline, reads, analyzer, indy, isStatic, checkContract, className, name, desc);
+        if(!NonNullAgent.ELIDE) {
+            return checks;
+        }
+
+        // The method is analysed as a whole before the checks are inserted,
+        // but only if one of its checks could be left out at all
+        return new MethodNode(ASM9, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                if(!hasNoChecksAnnotation(this) && hasElidableSite(this, checkContract)) {
+                    checks.nonNullOperands = NullnessAnalysis.analyse(className, this);
+                }
+                accept(checks);
+            }
+        };
+    }
+
+    /*
+     * Only plain non-null checks are left out (see
+     * NonNullMethodVisitor.elide). The annotations are resolved here as they
+     * would be when the checks are inserted; the resolver caches them.
+     */
+    boolean hasElidableSite(MethodNode method, boolean checkContract) {
+        boolean returnChecked = !checkContract;
+        for (AbstractInsnNode insn : method.instructions) {
+            int opcode = insn.getOpcode();
+            if(insn instanceof FieldInsnNode) {
+                FieldInsnNode field = (FieldInsnNode) insn;
+                if(NullnessAnalysis.isSite(opcode, field.desc) &&
+                        !(NonNullAgent.BOUNDARY &&
+                          className.equals(resolver.declaringClass(field.owner, field.name))) &&
+                        resolver.resolveField(field.owner, field.name) == AnnotationType.NON_NULL) {
+                    return true;
+                }
+            } else if(opcode == ARETURN && !returnChecked) {
+                if(resolver.resolveMethod(className, method.name, method.desc, -1) ==
+                        AnnotationType.NON_NULL) {
+                    return true;
+                }
+                returnChecked = true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasNoChecksAnnotation(MethodNode method) {
+        for (List<AnnotationNode> annotations : Arrays.asList(
+                method.visibleAnnotations, method.invisibleAnnotations)) {
+            if(annotations != null) {
+                for (AnnotationNode annotation : annotations) {
+                    if(annotation.desc.equals(NOCHECKS_ANN)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 
 }
\ No newline at end of file
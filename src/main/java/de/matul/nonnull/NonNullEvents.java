@@ -0,0 +1,94 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import nonnull.NoNullnessChecks;
+
+/**
+ * The Java Flight Recorder events of the agent. Like all custom events, they
+ * are enabled in every recording unless switched off in the recording
+ * settings (event names "de.matul.nonnull.*").
+ */
+@NoNullnessChecks
+final class NonNullEvents {
+
+    private NonNullEvents() {
+        // no instances
+    }
+
+    @Name("de.matul.nonnull.Transform")
+    @Label("NonNull Transformation")
+    @Category({ "NonNull" })
+    @Description("Instrumentation of a class file with non-null checks")
+    @StackTrace(false)
+    static final class Transform extends Event {
+
+        @Label("Class Name")
+        String className;
+
+        @Label("Bytes In")
+        @DataAmount
+        int bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        @Description("The size of the instrumented class, 0 if it is left unchanged")
+        int bytesOut;
+
+        @Label("Checks")
+        @Description("The number of inserted checks")
+        int checks;
+
+        @Label("Left Out")
+        @Description("The number of checks left out since the value is certainly not null")
+        int elided;
+
+        @Label("Cached")
+        @Description("Whether the result has been taken from the instrumentation cache")
+        boolean cached;
+    }
+
+    @Name("de.matul.nonnull.Resolution")
+    @Label("NonNull Resolution")
+    @Category({ "NonNull" })
+    @Description("Runtime resolution of the annotation of a check site")
+    @StackTrace(false)
+    static final class Resolution extends Event {
+
+        @Label("Site")
+        String site;
+
+        @Label("Result")
+        String result;
+    }
+
+    @Name("de.matul.nonnull.Violation")
+    @Label("NonNull Violation")
+    @Category({ "NonNull" })
+    @Description("A null value at a non-null check site")
+    static final class Violation extends Event {
+
+        @Label("Site")
+        String site;
+
+        @Label("Message")
+        String message;
+
+        @Label("Reported")
+        @Description("Whether the violation has been reported instead of thrown")
+        boolean reported;
+    }
+}
@@ -1,9 +1,22 @@
 package de.matul.nonnull;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
+
+import nonnull.Nullable;
 
 public class NonNullMethodVisitor extends MethodVisitor implements Opcodes {
 
@@ -15,6 +28,15 @@ public class NonNullMethodVisitor extends MethodVisitor implements Opcodes {
             "checkMethodParameterNonNull";
     private static final String CHECK_SIGNATURE =
             "(Ljava/lang/Object;I)V";
+    private static final String INDY_CHECK_NAME =
+            "checkNonNull";
+    private static final String INDY_CHECK_SIGNATURE =
+            "(Ljava/lang/Object;)V";
+    private static final Handle BOOTSTRAP_CHECK = new Handle(H_INVOKESTATIC,
+            NON_NULL_CHECKER_CLASSNAME, "bootstrapCheck",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;" +
+            "Ljava/lang/invoke/MethodType;Ljava/lang/String;Ljava/lang/String;" +
+            "Ljava/lang/String;II)Ljava/lang/invoke/CallSite;", false);
 
     private boolean noChecks;
     private final String methodName;
@@ -22,9 +44,90 @@ public class NonNullMethodVisitor extends MethodVisitor implements Opcodes {
     private final Type[] argTypes;
     private final String methDesc;
     private final String className;
+    private final NonNullClassVisitor classVisitor;
+    private final BytecodeResolver resolver;
+
+    /**
+     * If set, plain non-null checks are performed inline (see
+     * {@link NonNullAgent#INLINE}).
+     */
+    private final boolean inline;
+
+    /**
+     * If set, values read from fields are checked (see
+     * {@link NonNullAgent#READS}).
+     */
+    private final boolean reads;
+
+    /**
+     * The field reads checked since the last frame: "var:owner.name" for
+     * fields of the object in a local variable, "static:owner.name" for
+     * static fields. The code between two frames has no join points.
+     */
+    private final Set<String> checkedReads = new HashSet<>();
+
+    /**
+     * The local variable loaded by the last instruction, -1 if it has not
+     * been an ALOAD or if a label, frame or jump lies in between.
+     */
+    private int lastLoad = -1;
+
+    /**
+     * The frame after an inline read check. It is emitted before the next
+     * instruction unless the original code has a frame at this point.
+     */
+    private @Nullable Object[] pendingLocals;
+    private @Nullable Object[] pendingStack;
+
+    /**
+     * If set, checks are call sites bootstrapped by
+     * {@link NonNullChecker#bootstrapCheck} (see {@link NonNullAgent#INDY}).
+     */
+    private final boolean indy;
+
+    /**
+     * If not set, neither the parameters nor the result are checked (see
+     * {@link NonNullAgent#BOUNDARY}).
+     */
+    private final boolean checkContract;
+
+    /**
+     * The analyzer which tracks the frames for the inline checks. null if the
+     * class file version does not need stack map frames.
+     */
+    private final @Nullable AnalyzerAdapter analyzer;
+
+    /**
+     * The annotation of the result, resolved upon the first ARETURN.
+     * May be null if it cannot be determined at transformation time.
+     */
+    private @Nullable AnnotationType returnCheck;
+    private boolean returnResolved;
+
+    /**
+     * The sites (see {@link NullnessAnalysis#isSite}) whose value is certainly
+     * not null. null if the method has not been analysed.
+     */
+    @Nullable BitSet nonNullOperands;
+
+    /**
+     * The number of the next site.
+     */
+    private int site;
 
-    public NonNullMethodVisitor(MethodVisitor mv, boolean isStatic, String className, String name, String desc) {
+    public NonNullMethodVisitor(MethodVisitor mv, NonNullClassVisitor classVisitor,
+            BytecodeResolver resolver, boolean inline, boolean reads,
+            @Nullable AnalyzerAdapter analyzer,
+            boolean indy, boolean isStatic, boolean checkContract,
+            String className, String name, String desc) {
         super(Opcodes.ASM9, mv);
+        this.classVisitor = classVisitor;
+        this.resolver = resolver;
+        this.inline = inline;
+        this.reads = reads;
+        this.indy = indy;
+        this.checkContract = checkContract;
+        this.analyzer = analyzer;
         this.className = className;
         this.methodName = name;
         this.isStatic = isStatic;
@@ -44,55 +147,83 @@ public class NonNullMethodVisitor extends MethodVisitor implements Opcodes {
     @Override
     public void visitCode() {
         super.visitCode();
-        if(noChecks) {
+        if(noChecks || !checkContract) {
             return;
         }
 
+        boolean inlined = false;
         int j = isStatic ? 0 : 1;
         for (int i = 0; i < argTypes.length; i++) {
             int sort = argTypes[i].getSort();
             if ((sort == Type.OBJECT || sort == Type.ARRAY)) {
-                mv.visitIntInsn(ALOAD, j);
-                int id = NonNullChecker.registerArgumentCheck(className, methodName, methDesc, i);
-                mv.visitLdcInsn(id);
-                mv.visitMethodInsn(INVOKESTATIC, NON_NULL_CHECKER_CLASSNAME,
-                        CHECK_METHOD_PARAMETER_METHODNAME, CHECK_SIGNATURE, false);
+                AnnotationType check = resolver.resolveMethod(className, methodName, methDesc, i);
+                if(needsCheck(check)) {
+                    inlined = emitCheck(j, className, methodName, methDesc, i, check);
+                }
             }
             j += argTypes[i].getSize();
         }
+
+        if(inlined && analyzer != null) {
+            // The original code may start with a frame of its own. There must
+            // not be two frames for the same offset.
+            mv.visitInsn(NOP);
+        }
     }
 
     @Override
     public void visitFieldInsn(final int opcode, final String owner,
             final String name, final String desc) {
 
+        int receiver = lastLoad;
+        beforeInsn();
         if (noChecks) {
             super.visitFieldInsn(opcode, owner, name, desc);
             return;
         }
 
         int sort = Type.getType(desc).getSort();
-        int id;
 
         if(sort == Type.ARRAY || sort == Type.OBJECT) {
             switch (opcode) {
-//            case GETSTATIC:
-//            case GETFIELD:
-//                mv.visitFieldInsn(opcode, owner, name, desc);
-//                id = NonNullChecker.registerGetFieldCheck(owner, name);
-//                mv.visitInsn(DUP); // Duplicate the value
-//                mv.visitLdcInsn(id);
-//                mv.visitMethodInsn(INVOKESTATIC, NON_NULL_CHECKER_CLASSNAME,
-//                        CHECK_FIELD_METHODNAME, "(Ljava/lang/Object;I)V");
-//                return;
+            case GETSTATIC:
+            case GETFIELD:
+                if(!reads || isInitialising(opcode, owner)) {
+                    break;
+                }
+                String key = readKey(opcode, owner, name, receiver);
+                if(key != null && checkedReads.contains(key)) {
+                    // not counted in elidedCount, which is for the analysis
+                    break;
+                }
+                AnnotationType readCheck = resolver.resolveField(owner, name);
+                if(!needsCheck(readCheck)) {
+                    break;
+                }
+                mv.visitFieldInsn(opcode, owner, name, desc);
+                emitCheck(-1, owner, name, null, -3, readCheck);
+                if(key != null) {
+                    checkedReads.add(key);
+                }
+                return;
 
             case PUTSTATIC:
             case PUTFIELD:
-                mv.visitInsn(DUP); // Duplicate the value
-                id = NonNullChecker.registerPutFieldCheck(owner, name);
-                mv.visitLdcInsn(id);
-                mv.visitMethodInsn(INVOKESTATIC, NON_NULL_CHECKER_CLASSNAME,
-                        CHECK_FIELD_METHODNAME, CHECK_SIGNATURE);
+                if(reads) {
+                    String suffix = ":" + owner + "." + name;
+                    checkedReads.removeIf(k -> k.endsWith(suffix));
+                }
+                boolean nonNull = isNonNullOperand();
+                if(NonNullAgent.BOUNDARY &&
+                        className.equals(resolver.declaringClass(owner, name))) {
+                    // stores within the declaring class are not checked
+                    break;
+                }
+                AnnotationType check = resolver.resolveField(owner, name);
+                if(!needsCheck(check) || elide(check, nonNull)) {
+                    break;
+                }
+                emitCheck(-1, owner, name, null, -2, check);
                 mv.visitFieldInsn(opcode, owner, name, desc);
                 return;
             }
@@ -102,6 +233,7 @@ public class NonNullMethodVisitor extends MethodVisitor implements Opcodes {
 
     @Override
     public void visitInsn(int opcode) {
+        beforeInsn();
         if(noChecks) {
             super.visitInsn(opcode);
             return;
@@ -109,13 +241,317 @@ public class NonNullMethodVisitor extends MethodVisitor implements Opcodes {
 
         switch(opcode) {
         case ARETURN:
-            mv.visitInsn(DUP);
-            int id = NonNullChecker.registerReturnCheck(className, methodName, methDesc);
-            mv.visitLdcInsn(id);
-            mv.visitMethodInsn(INVOKESTATIC, NON_NULL_CHECKER_CLASSNAME,
-                    CHECK_METHOD_PARAMETER_METHODNAME, CHECK_SIGNATURE);
+            boolean nonNull = isNonNullOperand();
+            if(!checkContract) {
+                break;
+            }
+            if(!returnResolved) {
+                returnCheck = resolver.resolveMethod(className, methodName, methDesc, -1);
+                returnResolved = true;
+            }
+            if(needsCheck(returnCheck) && !elide(returnCheck, nonNull)) {
+                emitCheck(-1, className, methodName, methDesc, -1, returnCheck);
+            }
         }
         super.visitInsn(opcode);
     }
 
+    /*
+     * The remaining instructions only need to maintain the state for the
+     * read checks.
+     */
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        beforeInsn();
+        if(opcode == ASTORE && reads) {
+            String prefix = var + ":";
+            checkedReads.removeIf(k -> k.startsWith(prefix));
+        }
+        super.visitVarInsn(opcode, var);
+        if(opcode == ALOAD) {
+            lastLoad = var;
+        }
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        // the value on the stack may come from another path
+        lastLoad = -1;
+        if(analyzer == null) {
+            // without frames, every label may be a join point
+            checkedReads.clear();
+        }
+        super.visitLabel(label);
+    }
+
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack,
+            Object[] stack) {
+        // the original frame replaces the one after a read check
+        pendingLocals = null;
+        pendingStack = null;
+        checkedReads.clear();
+        lastLoad = -1;
+        super.visitFrame(type, numLocal, local, numStack, stack);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        beforeInsn();
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        beforeInsn();
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc,
+            boolean isInterface) {
+        beforeInsn();
+        super.visitMethodInsn(opcode, owner, name, desc, isInterface);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm,
+            Object... bsmArgs) {
+        beforeInsn();
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        beforeInsn();
+        super.visitJumpInsn(opcode, label);
+        lastLoad = -1;
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        beforeInsn();
+        super.visitLdcInsn(value);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        beforeInsn();
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        beforeInsn();
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+        lastLoad = -1;
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        beforeInsn();
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+        lastLoad = -1;
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int numDimensions) {
+        beforeInsn();
+        super.visitMultiANewArrayInsn(desc, numDimensions);
+    }
+
+    /*
+     * Called before every original instruction: emit the frame after a read
+     * check if the original code has none at this point.
+     */
+    private void beforeInsn() {
+        lastLoad = -1;
+        if(pendingLocals != null) {
+            mv.visitFrame(F_NEW, pendingLocals.length, pendingLocals,
+                    pendingStack.length, pendingStack);
+            pendingLocals = null;
+            pendingStack = null;
+        }
+    }
+
+    /*
+     * Fields of the own class may still be null while it is constructed or
+     * initialised.
+     */
+    private boolean isInitialising(int opcode, String owner) {
+        return owner.equals(className) &&
+                (opcode == GETFIELD && methodName.equals("<init>") ||
+                 opcode == GETSTATIC && methodName.equals("<clinit>"));
+    }
+
+    /*
+     * The key of a field read in checkedReads, null if the object cannot be
+     * identified.
+     */
+    private static @Nullable String readKey(int opcode, String owner, String name,
+            int receiver) {
+        if(opcode == GETSTATIC) {
+            return "static:" + owner + "." + name;
+        }
+        return receiver < 0 ? null : receiver + ":" + owner + "." + name;
+    }
+
+    /**
+     * Emit the check of a value.
+     *
+     * Plain non-null checks are emitted inline if possible: The checker is
+     * only called if the value is null. Otherwise the checker is always
+     * called.
+     *
+     * @param var
+     *            the local variable to check, -1 for the value on top of the
+     *            stack (which is left untouched)
+     * @param owner
+     *            the class declaring the method, or owning the field
+     * @param name
+     *            the name of the method or field
+     * @param desc
+     *            the descriptor of the method, null for fields
+     * @param param
+     *            the parameter number, -1 for the result, -2 for a field
+     *            store, -3 for a field read (plain non-null reads are
+     *            inlined even if inlining is not set)
+     * @param check
+     *            the annotation to check against, null if unknown
+     * @return true if the check has been inlined
+     */
+    private boolean emitCheck(int var, String owner, String name,
+            @Nullable String desc, int param, @Nullable AnnotationType check) {
+
+        classVisitor.checkCount ++;
+        if(classVisitor.siteTable != null) {
+            classVisitor.siteTable.add(className + "\t" + methodName + methDesc + "\t" +
+                    owner + "\t" + name + "\t" + (desc == null ? "" : desc) + "\t" +
+                    param + "\t" + (check == null ? "UNKNOWN" : check));
+        }
+
+        boolean canInline = check == AnnotationType.NON_NULL && (inline || param == -3) &&
+                (analyzer == null || analyzer.locals != null);
+
+        if(!canInline) {
+            pushValue(var);
+            emitCheckerCall(owner, name, desc, param, check);
+            return false;
+        }
+
+        // The frame at the join point is the frame before the check
+        Object[] locals = null;
+        Object[] stack = null;
+        if(analyzer != null) {
+            locals = toFrameTypes(analyzer.locals);
+            stack = toFrameTypes(analyzer.stack);
+        }
+
+        Label nonNull = new Label();
+        pushValue(var);
+        mv.visitJumpInsn(IFNONNULL, nonNull);
+        // cold path: let the checker report the null value
+        mv.visitInsn(ACONST_NULL);
+        emitCheckerCall(owner, name, desc, param, check);
+        mv.visitLabel(nonNull);
+        if(analyzer != null && param == -3) {
+            // the code after a read may be a join point with a frame of its own
+            pendingLocals = locals;
+            pendingStack = stack;
+        } else if(analyzer != null) {
+            mv.visitFrame(F_NEW, locals.length, locals, stack.length, stack);
+        }
+        return true;
+    }
+
+    /*
+     * Emit the call into the checker which consumes the value on top of the
+     * stack. Either an invokedynamic call site or the registration of an
+     * entry in the checker map together with a static call.
+     */
+    private void emitCheckerCall(String owner, String name,
+            @Nullable String desc, int param, @Nullable AnnotationType check) {
+        if(indy) {
+            mv.visitInvokeDynamicInsn(INDY_CHECK_NAME, INDY_CHECK_SIGNATURE,
+                    BOOTSTRAP_CHECK, owner, name, desc == null ? "" : desc, param,
+                    check == null ? -1 : check.ordinal());
+            return;
+        }
+
+        int id;
+        String checkMethod = CHECK_METHOD_PARAMETER_METHODNAME;
+        if(param == -3) {
+            id = NonNullChecker.registerGetFieldCheck(classVisitor.indices,
+                    owner, name, check);
+            checkMethod = CHECK_FIELD_METHODNAME;
+        } else if(param == -2) {
+            id = NonNullChecker.registerPutFieldCheck(classVisitor.indices,
+                    owner, name, check);
+            checkMethod = CHECK_FIELD_METHODNAME;
+        } else if(param == -1) {
+            id = NonNullChecker.registerReturnCheck(classVisitor.indices,
+                    owner, name, desc, check);
+        } else {
+            id = NonNullChecker.registerArgumentCheck(classVisitor.indices,
+                    owner, name, desc, param, check);
+        }
+        mv.visitLdcInsn(id);
+        mv.visitMethodInsn(INVOKESTATIC, NON_NULL_CHECKER_CLASSNAME,
+                checkMethod, CHECK_SIGNATURE, false);
+    }
+
+    private void pushValue(int var) {
+        if(var < 0) {
+            mv.visitInsn(DUP);
+        } else {
+            mv.visitVarInsn(ALOAD, var);
+        }
+    }
+
+    /*
+     * The analyzer adds a TOP after every long and double value, expanded
+     * frames must not contain them.
+     */
+    private static Object[] toFrameTypes(List<Object> types) {
+        List<Object> result = new ArrayList<>(types.size());
+        for (int i = 0; i < types.size(); i++) {
+            Object type = types.get(i);
+            result.add(type);
+            if(type.equals(LONG) || type.equals(DOUBLE)) {
+                i++;
+            }
+        }
+        return result.toArray();
+    }
+
+    /*
+     * Consume the next site number and look it up in the analysis results.
+     */
+    private boolean isNonNullOperand() {
+        return nonNullOperands != null && nonNullOperands.get(site++);
+    }
+
+    /*
+     * Plain non-null checks of values which are certainly not null are left
+     * out. Deep checks and unknown annotations are still checked.
+     */
+    private boolean elide(@Nullable AnnotationType check, boolean nonNull) {
+        if(nonNull && check == AnnotationType.NON_NULL) {
+            classVisitor.elidedCount ++;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Unknown annotations (null) are checked at runtime, known annotations
+     * only if they demand non-nullness.
+     */
+    private static boolean needsCheck(@Nullable AnnotationType check) {
+        return check == null ||
+                check == AnnotationType.NON_NULL ||
+                check == AnnotationType.DEEP_NON_NULL;
+    }
+
 }
@@ -0,0 +1,275 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Instrumentation ahead of time: This rewrites class directories and jar files
+ * such that the instrumented application can be run without the java agent.
+ * Only the classes of the agent jar need to be on the classpath.
+ *
+ * All checks are emitted as invokedynamic call sites which describe
+ * themselves, no index into the checker map is used. Class files older than
+ * version 51 (Java 7) cannot contain such call sites and are copied unchanged.
+ *
+ * A table of all inserted checks is written to {@value #SITE_TABLE} in every
+ * output.
+ *
+ * <pre>
+ * java -cp nonnull-all.jar de.matul.nonnull.NonNullOffline [options] (input output)+
+ *
+ *   -cp classpath   where to look for superclasses and package annotations
+ *   -prefix pattern only instrument classes matching this pattern (repeatable,
+ *                   see ClassMatcher)
+ *   -threads n      the number of threads to use
+ *   -inline         emit plain non-null checks inline (see NonNullAgent.INLINE)
+ * </pre>
+ *
+ * Inputs can be directories or jar files, the output is of the same kind.
+ */
+public class NonNullOffline {
+
+    /**
+     * The name of the resource listing the inserted checks
+     */
+    public static final String SITE_TABLE = "META-INF/nonnull/check-sites.txt";
+
+    private final ClassMatcher matcher;
+    private final ClassLoader loader;
+    private final ForkJoinPool pool;
+
+    private final AtomicInteger classCount = new AtomicInteger();
+    private final AtomicInteger instrumentedCount = new AtomicInteger();
+
+    public NonNullOffline(List<String> prefixes, ClassLoader loader, int threads) {
+        this.matcher = ClassMatcher.compile(prefixes.isEmpty() ?
+                Collections.singletonList("ALL") : prefixes);
+        this.loader = loader;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> prefixes = new ArrayList<>();
+        List<URL> classpath = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+            case "-cp":
+                for (String entry : args[++i].split(File.pathSeparator)) {
+                    if(!entry.isEmpty()) {
+                        classpath.add(Paths.get(entry).toUri().toURL());
+                    }
+                }
+                break;
+            case "-prefix":
+                prefixes.add(args[++i].replace('.', '/'));
+                break;
+            case "-threads":
+                threads = Integer.parseInt(args[++i]);
+                break;
+            case "-inline":
+                NonNullAgent.INLINE = true;
+                break;
+            default:
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        if(files.isEmpty() || files.size() % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "Usage: NonNullOffline [-cp classpath] [-prefix prefix]* " +
+                    "[-threads n] [-inline] (input output)+");
+        }
+
+        // only invokedynamic sites can work without the agent
+        NonNullAgent.INDY = true;
+
+        for (int i = 0; i < files.size(); i += 2) {
+            classpath.add(i / 2, files.get(i).toUri().toURL());
+        }
+
+        try(URLClassLoader loader = new URLClassLoader(classpath.toArray(new URL[0]),
+                ClassLoader.getPlatformClassLoader())) {
+            NonNullOffline offline = new NonNullOffline(prefixes, loader, threads);
+            for (int i = 0; i < files.size(); i += 2) {
+                offline.instrument(files.get(i), files.get(i + 1));
+            }
+            System.err.printf("Instrumented %d of %d classes%n",
+                    offline.instrumentedCount.get(), offline.classCount.get());
+        }
+    }
+
+    /**
+     * Instrument a directory or jar file.
+     *
+     * @param input
+     *            the directory or jar file to read
+     * @param output
+     *            the directory or jar file to write
+     */
+    public void instrument(Path input, Path output) throws IOException, InterruptedException {
+        try {
+            if(Files.isDirectory(input)) {
+                instrumentDirectory(input, output);
+            } else {
+                instrumentJar(input, output);
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Error while instrumenting " + input, e.getCause());
+        }
+    }
+
+    private void instrumentDirectory(Path input, Path output)
+            throws IOException, InterruptedException, ExecutionException {
+        List<Path> files;
+        try(Stream<Path> stream = Files.walk(input)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        ConcurrentLinkedQueue<String> sites = new ConcurrentLinkedQueue<>();
+        pool.submit(() -> files.parallelStream().forEach(file -> {
+            try {
+                Path target = output.resolve(input.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                byte[] data = Files.readAllBytes(file);
+                if(file.toString().endsWith(".class")) {
+                    data = instrumentClass(data, sites);
+                }
+                Files.write(target, data);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        })).get();
+
+        Path table = output.resolve(SITE_TABLE);
+        Files.createDirectories(table.getParent());
+        Files.write(table, sortedTable(sites));
+    }
+
+    private void instrumentJar(Path input, Path output)
+            throws IOException, InterruptedException, ExecutionException {
+        List<JarEntry> entries = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        try(JarFile jar = new JarFile(input.toFile(), false)) {
+            Enumeration<JarEntry> en = jar.entries();
+            while(en.hasMoreElements()) {
+                JarEntry entry = en.nextElement();
+                // signatures are invalid after the instrumentation
+                if(entry.isDirectory() || isSignature(entry.getName()) ||
+                        entry.getName().equals(SITE_TABLE)) {
+                    continue;
+                }
+                try(InputStream is = jar.getInputStream(entry)) {
+                    entries.add(entry);
+                    contents.add(Util.drainStream(is));
+                }
+            }
+        }
+
+        ConcurrentLinkedQueue<String> sites = new ConcurrentLinkedQueue<>();
+        pool.submit(() -> IntStream.range(0, entries.size()).parallel()
+                .filter(i -> entries.get(i).getName().endsWith(".class"))
+                .forEach(i -> contents.set(i, instrumentClass(contents.get(i), sites))))
+                .get();
+
+        if(output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        try(OutputStream os = Files.newOutputStream(output);
+                JarOutputStream jos = new JarOutputStream(os)) {
+            for (int i = 0; i < entries.size(); i++) {
+                JarEntry entry = new JarEntry(entries.get(i).getName());
+                entry.setTime(entries.get(i).getTime());
+                jos.putNextEntry(entry);
+                jos.write(contents.get(i));
+                jos.closeEntry();
+            }
+            jos.putNextEntry(new JarEntry(SITE_TABLE));
+            jos.write(String.join("\n", sortedTable(sites)).getBytes(StandardCharsets.UTF_8));
+            jos.closeEntry();
+        }
+    }
+
+    /*
+     * Instrument a single class file. Returns the original data if the class
+     * is not to be or cannot be instrumented.
+     */
+    private byte[] instrumentClass(byte[] data, ConcurrentLinkedQueue<String> sites) {
+        classCount.incrementAndGet();
+        String className = null;
+        try {
+            int majorVersion = ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+            className = new ClassReader(data).getClassName();
+
+            if(!matcher.matches(className) || NonNullTransformer.isAgentClass(className)) {
+                return data;
+            }
+
+            if(majorVersion < Opcodes.V1_7) {
+                System.err.println("Class file too old to be instrumented offline: " +
+                        className);
+                return data;
+            }
+
+            List<String> classSites = new ArrayList<>();
+            byte[] result = NonNullTransformer.instrument(loader, data, classSites);
+            if(result == null) {
+                return data;
+            }
+            sites.addAll(classSites);
+            instrumentedCount.incrementAndGet();
+            NonNullAgent.debug("Instrumented %s (%d checks)", className, classSites.size());
+            return result;
+        } catch (RuntimeException e) {
+            System.err.println("Error while transforming " + className);
+            e.printStackTrace();
+            return data;
+        }
+    }
+
+    private static boolean isSignature(String name) {
+        String upper = name.toUpperCase();
+        return upper.startsWith("META-INF/") && (upper.endsWith(".SF") ||
+                upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+    }
+
+    private static List<String> sortedTable(ConcurrentLinkedQueue<String> sites) {
+        List<String> result = new ArrayList<>(sites);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -3,22 +3,36 @@ package de.matul.nonnull;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nonnull.NonNull;
+import nonnull.Nullable;
 
 import org.objectweb.asm.Type;
 
 import de.matul.nonnull.NonNullResolver.AnnotationType;
 
-
+/**
+ * Resolves the nullness annotations of methods and fields at runtime using
+ * reflection, for sites whose annotation is not known at transformation time.
+ *
+ * There is one resolver per class loader. Classes are looked up through that
+ * loader, the defining loader of the classes with the check sites, and are
+ * never initialised by the lookup. The summaries of the classes are cached
+ * by name; the resolver does not keep its loader or any class reachable.
+ */
 public class NonNullResolver {
 
     public enum AnnotationType {
@@ -69,50 +83,115 @@ public class NonNullResolver {
         }
     }
 
+    /**
+     * Classify an annotation by its name.
+     *
+     * @param annotationName
+     *            the fully qualified name of the annotation type
+     * @return the corresponding type, {@link AnnotationType#NONE} if the
+     *         annotation is not a nullness annotation.
+     */
+    static AnnotationType classify(String annotationName) {
+        if(NON_NULL_ANNOTATIONS.contains(annotationName)) {
+            return AnnotationType.NON_NULL;
+        }
+        if(NULLABLE_ANNOTATIONS.contains(annotationName)) {
+            return AnnotationType.NULLABLE;
+        }
+        if(DEEP_NON_NULL_ANNOTATIONS.contains(annotationName)) {
+            return AnnotationType.DEEP_NON_NULL;
+        }
+        return AnnotationType.NONE;
+    }
+
+    /**
+     * Get the names of all annotations which demand a check, i.e., the
+     * non-null and deep non-null annotations.
+     *
+     * @return a fresh set of fully qualified names
+     */
+    static Set<String> getCheckedAnnotations() {
+        Set<String> result = new HashSet<>(NON_NULL_ANNOTATIONS);
+        result.addAll(DEEP_NON_NULL_ANNOTATIONS);
+        return result;
+    }
+
+    /**
+     * The summaries of the classes resolved so far. They are computed once
+     * per class and dropped together with the class.
+     */
+    private static final ClassValue<ClassSummary> SUMMARIES = new ClassValue<ClassSummary>() {
+        @Override
+        protected ClassSummary computeValue(Class<?> type) {
+            return new ClassSummary(type);
+        }
+    };
+
+    /**
+     * The loader to look up classes with, null for the bootstrap loader.
+     */
+    private final WeakReference<ClassLoader> loader;
+
+    /**
+     * The summaries looked up by this resolver, by internal class name.
+     */
+    private final Map<String, ClassSummary> summaries = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new resolver for the classes visible to a loader.
+     *
+     * @param loader
+     *            the loader to look up classes with, null for the bootstrap
+     *            loader
+     */
+    public NonNullResolver(@Nullable ClassLoader loader) {
+        this.loader = new WeakReference<>(loader);
+    }
+
+    /*
+     * The lookup does not run static initialisers. The class is not looked
+     * up within computeIfAbsent since loading it may run checks which are
+     * resolved by this resolver.
+     */
+    private ClassSummary summary(String classDesc) throws ClassNotFoundException {
+        ClassSummary result = summaries.get(classDesc);
+        if(result == null) {
+            Class<?> clazz = Class.forName(classDesc.replace('/', '.'), false, loader.get());
+            result = SUMMARIES.get(clazz);
+            summaries.putIfAbsent(classDesc, result);
+        }
+        return result;
+    }
+
     public AnnotationType shouldCheckMethod(String classDesc, String methodName, String methodDesc, int param) {
+        NonNullEvents.Resolution event = new NonNullEvents.Resolution();
+        event.begin();
         try {
-            String className = classDesc.replace('/', '.');
-            Class<?> clazz = Class.forName(className);
-            return shouldCheckMethodResult(clazz, methodName, methodDesc, param);
+            AnnotationType result = summary(classDesc).getMethod(methodName + methodDesc, param);
+            commit(event, classDesc + "." + methodName + methodDesc + "/" + param, result);
+            return result;
         } catch (Exception e) {
             throw new NonNullError("Internal error in non-null checking" , e);
         }
     }
 
     public AnnotationType shouldCheckField(String classDesc, String fieldName) {
+        NonNullEvents.Resolution event = new NonNullEvents.Resolution();
+        event.begin();
         try {
-            String className = classDesc.replace('/', '.');
-            Class<?> clazz = Class.forName(className);
-            
-            AnnotationType classAnn = getAnnotation(clazz);
-
-            Field field = null;
-            while(field == null && clazz != null) {
-                try {
-                    field = clazz.getDeclaredField(fieldName);
-                } catch (NoSuchFieldException e) {
-                    // just go on
-                }
+            ClassSummary summary = summary(classDesc);
 
-                if(field == null) {
-                    clazz = clazz.getSuperclass();
-                }
-            }
+            AnnotationType ann = summary.fields.get(fieldName);
 
-            if(field == null) {
+            if(ann == null) {
                 throw new NonNullError("Unknown field: " + fieldName);
             }
 
-            AnnotationType ann = getAnnotation(field);
-
-            if(ann == AnnotationType.NONE) {
-                ann = getAnnotation(field.getAnnotatedType());
-            }
-
             if(ann == AnnotationType.NONE) {
-                ann = classAnn;
+                ann = summary.classAnn;
             }
 
+            commit(event, classDesc + "." + fieldName, ann);
             return ann;
 
         } catch (Throwable e) {
@@ -121,54 +200,94 @@ public class NonNullResolver {
         }
     }
 
-    private AnnotationType shouldCheckMethodResult(Class<?> clazz, String methodName,
-            String methodDesc, int param) throws ClassNotFoundException {
-        
-        Method method = findMethod(methodName, methodDesc, clazz);
-
-        if(method == null) {
-            return AnnotationType.NONE;
-        }
-
-        NonNullAgent.debug("methodName: %s", methodName);
-        NonNullAgent.debug("Method: %s", method);
-        
-        AnnotationType methAnn = getMethodAnnotation(method, param);
-        if(methAnn != AnnotationType.NONE) {
-            return methAnn;
+    private static void commit(NonNullEvents.Resolution event, String site,
+            AnnotationType result) {
+        event.end();
+        if(event.shouldCommit()) {
+            event.site = site;
+            event.result = result.name();
+            event.commit();
         }
+    }
 
-        NonNullAgent.debug("methAnn: " + methAnn);
-
-        AnnotationType classAnn = getAnnotation(clazz);
-        if(classAnn != AnnotationType.NONE) {
-            return classAnn;
-        }
+    /**
+     * The effective nullness of all declared methods and all fields of a
+     * class. Inherited contracts are taken from the summaries of the
+     * superclass and the interfaces. A summary does not refer to its class.
+     */
+    private static final class ClassSummary {
+
+        private final AnnotationType classAnn;
+
+        /**
+         * Maps name + descriptor of every declared method to the effective
+         * annotations. Index 0 holds the result, index i+1 parameter i.
+         */
+        private final Map<String, AnnotationType[]> methods = new HashMap<>();
+
+        /**
+         * Maps the names of all declared and inherited fields to their own
+         * annotations (without the class annotation).
+         */
+        private final Map<String, AnnotationType> fields = new HashMap<>();
+
+        private ClassSummary(Class<?> clazz) {
+            classAnn = getAnnotation(clazz);
+            AnnotationType packAnn = null;
+
+            Class<?> superclass = clazz.getSuperclass();
+            ClassSummary superSummary = superclass == null ? null : SUMMARIES.get(superclass);
+            Class<?>[] interfaces = clazz.getInterfaces();
+
+            for (Method method : clazz.getDeclaredMethods()) {
+                String key = method.getName() + Type.getMethodDescriptor(method);
+                AnnotationType[] result = new AnnotationType[method.getParameterCount() + 1];
+                for (int param = -1; param < result.length - 1; param++) {
+                    AnnotationType ann = getMethodAnnotation(method, param);
+                    if(ann == AnnotationType.NONE) {
+                        ann = classAnn;
+                    }
+                    if(ann == AnnotationType.NONE && superSummary != null) {
+                        ann = superSummary.getMethod(key, param);
+                    }
+                    for (int i = 0; ann == AnnotationType.NONE && i < interfaces.length; i++) {
+                        ann = SUMMARIES.get(interfaces[i]).getMethod(key, param);
+                    }
+                    if(ann == AnnotationType.NONE) {
+                        // finally check the package for annotations
+                        if(packAnn == null) {
+                            packAnn = getAnnotation(clazz.getPackage());
+                        }
+                        ann = packAnn;
+                    }
+                    result[param + 1] = ann;
+                }
+                NonNullAgent.debug("Method: %s: %s", method, Arrays.asList(result));
+                methods.put(key, result);
+            }
 
-        Class<?> superclass = clazz.getSuperclass();
-        if(superclass != null) {
-            AnnotationType superAnn = 
-                    shouldCheckMethodResult(superclass, methodName, methodDesc, param);
-            if(superAnn != AnnotationType.NONE) {
-                return superAnn;
+            if(superSummary != null) {
+                fields.putAll(superSummary.fields);
+            }
+            for (Field field : clazz.getDeclaredFields()) {
+                AnnotationType ann = getAnnotation(field);
+                if(ann == AnnotationType.NONE) {
+                    ann = getAnnotation(field.getAnnotatedType());
+                }
+                fields.put(field.getName(), ann);
             }
         }
 
-        for (Class<?> intf : clazz.getInterfaces()) {
-            AnnotationType superAnn = 
-                    shouldCheckMethodResult(intf, methodName, methodDesc, param);
-            if(superAnn != AnnotationType.NONE) {
-                return superAnn;
+        private AnnotationType getMethod(String key, int param) {
+            AnnotationType[] method = methods.get(key);
+            if(method == null) {
+                return AnnotationType.NONE;
             }
+            return method[param + 1];
         }
-
-        // finally check the package for annotations
-        AnnotationType packAnn = getAnnotation(clazz.getPackage());
-
-        return packAnn;
     }
 
-    private @NonNull AnnotationType getMethodAnnotation(Method method, int param) {
+    private static @NonNull AnnotationType getMethodAnnotation(Method method, int param) {
         if(param == -1) {
             AnnotationType ann = getAnnotation(method);
             if(ann == AnnotationType.NONE) {
@@ -181,51 +300,32 @@ public class NonNullResolver {
             annotations.addAll(Arrays.asList(method.getAnnotatedParameterTypes()[param].getAnnotations()));
             for (Annotation ann : annotations) {
                 NonNullAgent.debug("Ann: %s", ann);
-                if(NON_NULL_ANNOTATIONS.contains(ann.annotationType().getName())) {
-                    return AnnotationType.NON_NULL;
-                }
-                if(NULLABLE_ANNOTATIONS.contains(ann.annotationType().getName())) {
-                    return AnnotationType.NULLABLE;
-                }
-                if(DEEP_NON_NULL_ANNOTATIONS.contains(ann.annotationType().getName())) {
-                    return AnnotationType.DEEP_NON_NULL;
+                AnnotationType type = classify(ann.annotationType().getName());
+                if(type != AnnotationType.NONE) {
+                    return type;
                 }
             }
             return AnnotationType.NONE;
         }
     }
 
-    private @NonNull AnnotationType getAnnotation(AnnotatedElement annElem) {
+    private static @NonNull AnnotationType getAnnotation(AnnotatedElement annElem) {
+        if(annElem == null) {
+            // classes in the unnamed package
+            return AnnotationType.NONE;
+        }
         Annotation[] annotations = annElem.getAnnotations();
         NonNullAgent.debug("Annotations for %s: %s", annElem, Arrays.asList(annotations));
         if(annotations != null) {
             for (Annotation ann : annotations) {
                 NonNullAgent.debug("Ann: " + ann);
-                if(NON_NULL_ANNOTATIONS.contains(ann.annotationType().getName())) {
-                    return AnnotationType.NON_NULL;
-                }
-                if(NULLABLE_ANNOTATIONS.contains(ann.annotationType().getName())) {
-                    return AnnotationType.NULLABLE;
-                }
-                if(DEEP_NON_NULL_ANNOTATIONS.contains(ann.annotationType().getName())) {
-                    return AnnotationType.DEEP_NON_NULL;
+                AnnotationType type = classify(ann.annotationType().getName());
+                if(type != AnnotationType.NONE) {
+                    return type;
                 }
             }
         }
         return AnnotationType.NONE;
     }
 
-    private Method findMethod(String methodName, String methodDesc,
-            Class<?> clazz) {
-        Method result = null;
-        for (Method m : clazz.getDeclaredMethods()) {
-            if(methodName.equals(m.getName())) {
-                if(Type.getMethodDescriptor(m).equals(methodDesc)) {
-                    result  = m;
-                }
-            }
-        }
-        return result;
-    }
-
 }
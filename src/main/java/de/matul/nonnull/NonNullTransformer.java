@@ -0,0 +1,211 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.List;
+
+import nonnull.Nullable;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * The transformer which actually triggers the transformation.
+ */
+class NonNullTransformer implements ClassFileTransformer {
+
+    /**
+     * The filter of the classes to be modified.
+     */
+    private final ClassMatcher matcher;
+
+    /**
+     * The package of the agent classes (not including subpackages).
+     */
+    private static final String AGENT_PACKAGE = "de/matul/nonnull/";
+
+    /**
+     * The cache of instrumented class files.
+     */
+    private final InstrumentationCache cache;
+
+    /**
+     * Instantiates a new transformer.
+     *
+     * @param matcher
+     *            the filter of the classes to be considered
+     * @param cache
+     *            the cache of instrumented class files
+     */
+    public NonNullTransformer(ClassMatcher matcher, InstrumentationCache cache) {
+        this.matcher = matcher;
+        this.cache = cache;
+    }
+
+    /*
+     * Transform the class:
+     * - instrument it with non-null check instructions
+     * - write the class file to temp directory if debug is on
+     */
+    @Override
+    public byte[] transform(ClassLoader loader, String className,
+            Class<?> cl, ProtectionDomain pd, byte[] data) {
+        try {
+            // anonymously created classes have no class name, bail out
+            if(className == null) {
+                return null;
+            }
+
+            if(!applies(className)) {
+                return null;
+            }
+
+            NonNullAgent.debug("Instrumenting class: %s", className);
+            NonNullAgent.debug("Existing class: %s", cl);
+
+            NonNullEvents.Transform event = new NonNullEvents.Transform();
+            event.begin();
+            byte[] result = cache.instrument(loader, data, event);
+            event.end();
+            if(event.shouldCommit()) {
+                event.className = className;
+                event.bytesIn = data.length;
+                event.bytesOut = result == null ? 0 : result.length;
+                event.commit();
+            }
+            if(NonNullAgent.METRICS && event.elided > 0) {
+                CheckerMetrics.elided(event.elided);
+            }
+
+            if(result == null) {
+                NonNullAgent.debug("Leaving data untouched for " + className);
+                return null;
+            }
+
+            if(NonNullAgent.VERBOSE) {
+                File file = new File(NonNullAgent.DEBUG_OUTPUT_DIR, className + ".class");
+                file.getParentFile().mkdirs();
+                FileOutputStream fw = new FileOutputStream(
+                        file);
+                fw.write(result);
+                fw.close();
+                NonNullAgent.debug("Successfully finished instrumenting " + className);
+            }
+
+            return result;
+        } catch (Throwable e) {
+            System.err.println("Error while transforming " + className);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Instrument a class file with non-null checks.
+     *
+     * @param loader
+     *            the loader to read the class files of superclasses,
+     *            interfaces and packages from, null for the bootstrap loader
+     * @param data
+     *            the class file to instrument
+     * @param siteTable
+     *            if not null, a line describing every inserted check is added
+     * @return the instrumented class file, null if no check has been inserted
+     */
+    static @Nullable byte[] instrument(@Nullable ClassLoader loader, byte[] data,
+            @Nullable List<String> siteTable) {
+        ClassReader reader = new ClassReader(data);
+        BytecodeResolver resolver =
+                new BytecodeResolver(loader, reader);
+        return instrument(reader, resolver, siteTable, null);
+    }
+
+    /**
+     * Instrument a class file with non-null checks using a given resolver.
+     *
+     * @param reader
+     *            the reader of the class file to instrument
+     * @param resolver
+     *            the resolver for the annotations
+     * @param siteTable
+     *            if not null, a line describing every inserted check is added
+     * @param event
+     *            if not null, the number of inserted and left out checks is
+     *            set in it
+     * @return the instrumented class file, null if no check has been inserted
+     */
+    static @Nullable byte[] instrument(ClassReader reader, BytecodeResolver resolver,
+            @Nullable List<String> siteTable, @Nullable NonNullEvents.Transform event) {
+        if(!ConstantPoolScan.mayNeedChecks(reader, resolver)) {
+            NonNullAgent.debug("No annotations apply to %s", reader.getClassName());
+            return null;
+        }
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        NonNullClassVisitor inspector = new NonNullClassVisitor(writer, resolver);
+        inspector.siteTable = siteTable;
+        reader.accept(inspector, NonNullAgent.INLINE || NonNullAgent.READS ?
+                ClassReader.EXPAND_FRAMES : 0);
+
+        if(event != null) {
+            event.checks = inspector.checkCount;
+            event.elided = inspector.elidedCount;
+        }
+        if(inspector.elidedCount > 0) {
+            NonNullAgent.debug("Left out %d checks in %s", inspector.elidedCount,
+                    reader.getClassName());
+        }
+
+        if(inspector.noChecks || inspector.checkCount == 0) {
+            return null;
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Check whether a class is to be instrumented by this transformer.
+     *
+     * @param className
+     *            the internal name of the class
+     * @return true if the class matches the patterns and is not part of the
+     *         agent
+     */
+    boolean applies(String className) {
+        return matcher.matches(className) && !isAgentClass(className);
+    }
+
+    /*
+     * The classes of the agent itself must not be instrumented. They are
+     * loaded while transforming.
+     */
+    static boolean isAgentClass(String className) {
+        return className.startsWith(AGENT_PACKAGE) &&
+                className.indexOf('/', AGENT_PACKAGE.length()) < 0;
+    }
+
+    /* For test purposes */
+    public static void main(String[] args) throws Exception {
+        NonNullTransformer tr = new NonNullTransformer(
+                ClassMatcher.compile(Collections.singletonList("ALL")),
+                new InstrumentationCache(null));
+        String className = args[0];
+        Class<?> clazz = Class.forName(className);
+        InputStream is = NonNullTransformer.class.
+                getResourceAsStream("/" + className.replace('.', '/') + ".class");
+        byte[] code = Util.drainStream(is);
+        tr.transform(NonNullTransformer.class.getClassLoader(), className,
+                clazz, null, code);
+    }
+}
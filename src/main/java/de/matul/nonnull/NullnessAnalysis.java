@@ -0,0 +1,257 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import nonnull.Nullable;
+
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
+
+/**
+ * An intra-method analysis which finds the values stored into fields and
+ * returned from the method which are certainly not null. The non-null checks
+ * of these values can be left out (see {@link NonNullAgent#ELIDE}).
+ *
+ * Values are known to be non-null if they are
+ * <ul>
+ * <li>{@code this},
+ * <li>created by NEW, NEWARRAY, ANEWARRAY or MULTIANEWARRAY,
+ * <li>constants loaded by LDC (except dynamic constants),
+ * <li>caught exceptions.
+ * </ul>
+ * Casts and copies keep the knowledge. Tests against null are not taken into
+ * account.
+ *
+ * Parameters are never known to be non-null, even if they are checked upon
+ * method entry: The entry check may not throw (switched off, sampled, in
+ * report mode, or in offline instrumented code run with unknown settings).
+ */
+final class NullnessAnalysis {
+
+    private NullnessAnalysis() {
+        // no instances
+    }
+
+    /**
+     * Check whether an instruction is a site whose operand is analysed:
+     * a store into a field of reference type or the return of a reference.
+     * The sites are numbered in the order of the instructions.
+     *
+     * @param opcode
+     *            the opcode of the instruction
+     * @param fieldDesc
+     *            the descriptor of the field for field instructions
+     * @return true if the instruction is a site
+     */
+    static boolean isSite(int opcode, @Nullable String fieldDesc) {
+        if(opcode == Opcodes.ARETURN) {
+            return true;
+        }
+        if(opcode == Opcodes.PUTFIELD || opcode == Opcodes.PUTSTATIC) {
+            int sort = Type.getType(fieldDesc).getSort();
+            return sort == Type.OBJECT || sort == Type.ARRAY;
+        }
+        return false;
+    }
+
+    /**
+     * Analyse a method.
+     *
+     * @param owner
+     *            the internal name of the class declaring the method
+     * @param method
+     *            the method to analyse
+     * @return the numbers of the sites whose operand is certainly not null,
+     *         null if there are no sites or the method cannot be analysed
+     */
+    static @Nullable BitSet analyse(String owner, MethodNode method) {
+        List<AbstractInsnNode> sites = new ArrayList<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            String desc = insn instanceof FieldInsnNode ? ((FieldInsnNode) insn).desc : null;
+            if(isSite(insn.getOpcode(), desc)) {
+                sites.add(insn);
+            }
+        }
+        if(sites.isEmpty()) {
+            return null;
+        }
+
+        Frame<NullnessValue>[] frames;
+        try {
+            frames = new Analyzer<>(new NullnessInterpreter()).analyze(owner, method);
+        } catch (AnalyzerException e) {
+            NonNullAgent.debug("Cannot analyse %s.%s: %s", owner, method.name, e);
+            return null;
+        }
+
+        BitSet result = new BitSet();
+        for (int i = 0; i < sites.size(); i++) {
+            // the frame before the instruction, null if unreachable
+            Frame<NullnessValue> frame = frames[method.instructions.indexOf(sites.get(i))];
+            if(frame != null && frame.getStack(frame.getStackSize() - 1).nonNull) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A value of the basic interpreter together with the knowledge whether
+     * it is certainly not null.
+     */
+    private static final class NullnessValue implements Value {
+        private final BasicValue basic;
+        private final boolean nonNull;
+
+        private NullnessValue(BasicValue basic, boolean nonNull) {
+            this.basic = basic;
+            this.nonNull = nonNull;
+        }
+
+        @Override
+        public int getSize() {
+            return basic.getSize();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof NullnessValue)) {
+                return false;
+            }
+            NullnessValue other = (NullnessValue) obj;
+            return basic.equals(other.basic) && nonNull == other.nonNull;
+        }
+
+        @Override
+        public int hashCode() {
+            return basic.hashCode() * 2 + (nonNull ? 1 : 0);
+        }
+    }
+
+    /**
+     * Delegates the types to a {@link BasicInterpreter} and tracks
+     * non-nullness on top.
+     */
+    private static final class NullnessInterpreter extends Interpreter<NullnessValue>
+            implements Opcodes {
+
+        private final BasicInterpreter basic = new BasicInterpreter();
+
+        private NullnessInterpreter() {
+            super(ASM9);
+        }
+
+        private static @Nullable NullnessValue wrap(@Nullable BasicValue value, boolean nonNull) {
+            return value == null ? null : new NullnessValue(value, nonNull);
+        }
+
+        @Override
+        public NullnessValue newValue(Type type) {
+            return wrap(basic.newValue(type), false);
+        }
+
+        @Override
+        public NullnessValue newParameterValue(boolean isInstanceMethod, int local, Type type) {
+            return wrap(basic.newValue(type), isInstanceMethod && local == 0);
+        }
+
+        @Override
+        public NullnessValue newExceptionValue(TryCatchBlockNode tryCatchBlockNode,
+                Frame<NullnessValue> handlerFrame, Type exceptionType) {
+            return wrap(basic.newValue(exceptionType), true);
+        }
+
+        @Override
+        public NullnessValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+            boolean nonNull = insn.getOpcode() == NEW || insn.getOpcode() == LDC &&
+                    !(((LdcInsnNode) insn).cst instanceof ConstantDynamic);
+            return wrap(basic.newOperation(insn), nonNull);
+        }
+
+        @Override
+        public NullnessValue copyOperation(AbstractInsnNode insn, NullnessValue value)
+                throws AnalyzerException {
+            return wrap(basic.copyOperation(insn, value.basic), value.nonNull);
+        }
+
+        @Override
+        public NullnessValue unaryOperation(AbstractInsnNode insn, NullnessValue value)
+                throws AnalyzerException {
+            boolean nonNull;
+            switch(insn.getOpcode()) {
+            case CHECKCAST:
+                nonNull = value.nonNull;
+                break;
+            case NEWARRAY:
+            case ANEWARRAY:
+                nonNull = true;
+                break;
+            default:
+                nonNull = false;
+            }
+            return wrap(basic.unaryOperation(insn, value.basic), nonNull);
+        }
+
+        @Override
+        public NullnessValue binaryOperation(AbstractInsnNode insn, NullnessValue value1,
+                NullnessValue value2) throws AnalyzerException {
+            return wrap(basic.binaryOperation(insn, value1.basic, value2.basic), false);
+        }
+
+        @Override
+        public NullnessValue ternaryOperation(AbstractInsnNode insn, NullnessValue value1,
+                NullnessValue value2, NullnessValue value3) throws AnalyzerException {
+            return wrap(basic.ternaryOperation(insn, value1.basic, value2.basic,
+                    value3.basic), false);
+        }
+
+        @Override
+        public NullnessValue naryOperation(AbstractInsnNode insn,
+                List<? extends NullnessValue> values) throws AnalyzerException {
+            List<BasicValue> basicValues = new ArrayList<>(values.size());
+            for (NullnessValue value : values) {
+                basicValues.add(value.basic);
+            }
+            return wrap(basic.naryOperation(insn, basicValues),
+                    insn.getOpcode() == MULTIANEWARRAY);
+        }
+
+        @Override
+        public void returnOperation(AbstractInsnNode insn, NullnessValue value,
+                NullnessValue expected) {
+            // nothing to verify
+        }
+
+        @Override
+        public NullnessValue merge(NullnessValue value1, NullnessValue value2) {
+            BasicValue merged = basic.merge(value1.basic, value2.basic);
+            boolean nonNull = value1.nonNull && value2.nonNull;
+            if(merged.equals(value1.basic) && nonNull == value1.nonNull) {
+                return value1;
+            }
+            return new NullnessValue(merged, nonNull);
+        }
+    }
+}
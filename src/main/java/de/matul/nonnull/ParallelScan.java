@@ -0,0 +1,145 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import nonnull.NoNullnessChecks;
+import nonnull.Nullable;
+
+/**
+ * The parallel scan of large arrays and collections at deep non-null sites.
+ * Arrays and collections with at least {@link NonNullAgent#PARALLEL_THRESHOLD}
+ * elements are split into chunks which are scanned in a fork/join pool of
+ * {@link NonNullAgent#PARALLELISM} threads. The calling thread waits for the
+ * result.
+ *
+ * Collections are only scanned in parallel if their spliterator knows the
+ * exact size of its splits, such that the index of a null is known. The scan
+ * reports the lowest index of a null, as the sequential scan does. Chunks
+ * behind a null found so far are skipped.
+ *
+ * The pool is created upon the first parallel scan; later changes of the
+ * parallelism have no effect.
+ */
+@NoNullnessChecks
+final class ParallelScan {
+
+    /**
+     * The number of elements below which a chunk is not split any further.
+     */
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    private static final class PoolHolder {
+        private static final ForkJoinPool POOL = new ForkJoinPool(NonNullAgent.PARALLELISM);
+    }
+
+    private ParallelScan() {
+        // no instances
+    }
+
+    /**
+     * Check whether an array or collection is to be scanned in parallel.
+     *
+     * @param size
+     *            the number of elements
+     * @return true if parallel scanning is enabled and the size is above the
+     *         threshold
+     */
+    static boolean applies(long size) {
+        return NonNullAgent.PARALLELISM > 1 && size >= NonNullAgent.PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * Get the spliterator to scan a collection in parallel.
+     *
+     * @param collection
+     *            the collection to scan
+     * @return the spliterator, null if the collection is to be scanned
+     *         sequentially
+     */
+    static @Nullable Spliterator<?> spliterator(Collection<?> collection) {
+        if(!applies(collection.size())) {
+            return null;
+        }
+        Spliterator<?> result = collection.spliterator();
+        return result.hasCharacteristics(Spliterator.SUBSIZED) ? result : null;
+    }
+
+    /**
+     * Scan the elements of a spliterator in parallel.
+     *
+     * @param spliterator
+     *            a spliterator whose splits have a known size
+     * @return the lowest index of a null element, -1 if there is none
+     */
+    static long indexOfNull(Spliterator<?> spliterator) {
+        AtomicLong found = new AtomicLong(Long.MAX_VALUE);
+        PoolHolder.POOL.invoke(new Scan(spliterator, 0, found));
+        long result = found.get();
+        return result == Long.MAX_VALUE ? -1 : result;
+    }
+
+    private static final class Scan extends RecursiveAction implements Consumer<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Spliterator<?> spliterator;
+        private final long offset;
+        private final AtomicLong found;
+        private boolean isNull;
+
+        private Scan(Spliterator<?> spliterator, long offset, AtomicLong found) {
+            this.spliterator = spliterator;
+            this.offset = offset;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            Spliterator<?> rest = spliterator;
+            long index = offset;
+            List<Scan> forked = new ArrayList<>();
+            while(rest.estimateSize() > CHUNK_SIZE) {
+                Spliterator<?> prefix = rest.trySplit();
+                if(prefix == null) {
+                    break;
+                }
+                long size = prefix.estimateSize();
+                Scan task = new Scan(prefix, index, found);
+                task.fork();
+                forked.add(task);
+                index += size;
+            }
+
+            while(index < found.get() && rest.tryAdvance(this)) {
+                if(isNull) {
+                    found.accumulateAndGet(index, Math::min);
+                    break;
+                }
+                index++;
+            }
+
+            for (Scan task : forked) {
+                task.join();
+            }
+        }
+
+        @Override
+        public void accept(Object element) {
+            isNull = element == null;
+        }
+    }
+}
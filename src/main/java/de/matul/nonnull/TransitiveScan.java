@@ -0,0 +1,187 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.lang.reflect.Modifier;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import nonnull.NoNullnessChecks;
+import nonnull.Nullable;
+
+/**
+ * The transitive deep non-null check used if {@link NonNullAgent#DEEP_DEPTH}
+ * is greater than 1. It descends into nested arrays, iterables, maps and
+ * optionals up to that depth.
+ *
+ * The elements of the value itself are checked by the {@link DeepCheckers}
+ * first, so violations at depth 1 are reported as before. Every nested
+ * container is checked completely before its own elements are descended
+ * into. The location of a nested null is reported as a path, for instance
+ * "array index [3][17]". Elements of arrays and iterables are denoted by
+ * their index, map values by "[n]" and map keys by "{n}" where n is the
+ * position of the entry in iteration order, and the value of an optional
+ * by ".get()". Keys are not printed since their toString may fail. Values
+ * checked by a plugged in checker are not descended into; their message is
+ * appended to the path.
+ *
+ * Every container is visited at most once per check (compared by identity),
+ * which also breaks cycles. At most {@link NonNullAgent#DEEP_BUDGET}
+ * elements are inspected per check, counting both the test for null and the
+ * test whether to descend; if the budget is exhausted, the check passes.
+ */
+@NoNullnessChecks
+final class TransitiveScan {
+
+    /**
+     * Thrown to abort the scan once the budget is exhausted.
+     */
+    private static final class BudgetExhausted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private BudgetExhausted() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final BudgetExhausted EXHAUSTED = new BudgetExhausted();
+
+    private final Map<Object, Boolean> visited = new IdentityHashMap<>();
+
+    private final StringBuilder path = new StringBuilder();
+
+    private long budget = NonNullAgent.DEEP_BUDGET;
+
+    private TransitiveScan() {
+    }
+
+    /**
+     * Search a value for a null element up to a depth.
+     *
+     * @param value
+     *            the value at a deep non-null site, not null
+     * @param depth
+     *            the number of levels to check, at least 1
+     * @return null if no null has been found, otherwise its location
+     */
+    static @Nullable String findNull(Object value, int depth) {
+        String direct = DeepCheckers.findNull(value);
+        if(direct != null || depth <= 1 || DeepCheckers.isPlugin(value.getClass())) {
+            return direct;
+        }
+
+        TransitiveScan scan = new TransitiveScan();
+        scan.visited.put(value, Boolean.TRUE);
+        try {
+            if(scan.elements(value, depth, true)) {
+                return prefix(value) + scan.path;
+            }
+        } catch (BudgetExhausted e) {
+            NonNullAgent.debug("Budget exhausted in deep check of %s", value.getClass().getName());
+        }
+        return null;
+    }
+
+    private static String prefix(Object value) {
+        if(value instanceof Object[]) {
+            return "array index ";
+        } else if(value instanceof Map<?, ?>) {
+            return "map entry ";
+        } else if(value instanceof Optional<?>) {
+            return "optional";
+        } else {
+            return "iteration index ";
+        }
+    }
+
+    /*
+     * Check the elements of a nested container and descend into them.
+     */
+    private boolean visit(Object node, int depth) {
+        if(DeepCheckers.isPlugin(node.getClass())) {
+            String detail = DeepCheckers.findNull(node);
+            if(detail != null) {
+                path.append(' ').append(detail);
+                return true;
+            }
+            return false;
+        }
+        return elements(node, depth, false) || depth > 1 && elements(node, depth, true);
+    }
+
+    /*
+     * Check the elements of a container for null (descend = false) or visit
+     * the containers among them (descend = true). If a null is found, the
+     * path to it is prepended to the path.
+     */
+    private boolean elements(Object node, int depth, boolean descend) {
+        if(node instanceof Object[]) {
+            Object[] array = (Object[]) node;
+            if(descend && isLeaf(array.getClass().getComponentType())) {
+                return false;
+            }
+            for (int i = 0; i < array.length; i++) {
+                if(element(array[i], depth, descend)) {
+                    path.insert(0, "[" + i + "]");
+                    return true;
+                }
+            }
+        } else if(node instanceof Map<?, ?>) {
+            int pos = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) node).entrySet()) {
+                if(element(entry.getKey(), depth, descend)) {
+                    path.insert(0, "{" + pos + "}");
+                    return true;
+                }
+                if(element(entry.getValue(), depth, descend)) {
+                    path.insert(0, "[" + pos + "]");
+                    return true;
+                }
+                pos ++;
+            }
+        } else if(node instanceof Optional<?>) {
+            // an empty optional is valid
+            Optional<?> optional = (Optional<?>) node;
+            if(optional.isPresent() && element(optional.get(), depth, descend)) {
+                path.insert(0, ".get()");
+                return true;
+            }
+        } else if(node instanceof Iterable<?>) {
+            int pos = 0;
+            for (Object object : (Iterable<?>) node) {
+                if(element(object, depth, descend)) {
+                    path.insert(0, "[" + pos + "]");
+                    return true;
+                }
+                pos ++;
+            }
+        }
+        return false;
+    }
+
+    private boolean element(@Nullable Object element, int depth, boolean descend) {
+        if(--budget < 0) {
+            throw EXHAUSTED;
+        }
+        if(!descend) {
+            return element == null;
+        }
+        return element != null && DeepCheckers.isContainer(element.getClass()) &&
+                visited.put(element, Boolean.TRUE) == null && visit(element, depth - 1);
+    }
+
+    /*
+     * The elements of arrays of final classes without elements need not be
+     * visited.
+     */
+    private static boolean isLeaf(Class<?> componentType) {
+        return Modifier.isFinal(componentType.getModifiers()) &&
+                !DeepCheckers.isContainer(componentType);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.lang.ref.WeakReference;
+
+import nonnull.NoNullnessChecks;
+
+/**
+ * The immutable collections which have already passed a deep non-null check.
+ * If the same instance is passed through several deep non-null sites, only
+ * the first check iterates it.
+ *
+ * Only collections of classes known to be immutable are remembered: the
+ * collections of {@code List.of}, {@code Set.of}, {@code Stream.toList} and
+ * their sublists, the empty and singleton collections of
+ * {@link java.util.Collections} and the immutable collections of Guava.
+ * Unmodifiable views like {@code Collections.unmodifiableList} are not
+ * remembered since their backing collection may still change.
+ *
+ * The cache is a direct mapped table of weak references indexed by the
+ * identity hash code. It never grows and does not keep the collections
+ * alive. Entries are overwritten on collision; races between threads can
+ * only lose entries. The size is set using the system property
+ * {@code de.matul.nonnull.deepcache} (default 1024, 0 disables the cache).
+ */
+@NoNullnessChecks
+final class VerifiedCache {
+
+    private static final int SIZE = Integer.highestOneBit(
+            Math.max(0, Integer.getInteger("de.matul.nonnull.deepcache", 1024)));
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final WeakReference<Object>[] table = new WeakReference[SIZE];
+
+    private static final ClassValue<Boolean> IMMUTABLE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            String name = type.getName();
+            return name.startsWith("java.util.ImmutableCollections$") ||
+                    name.startsWith("java.util.Collections$Empty") ||
+                    name.startsWith("java.util.Collections$Singleton") ||
+                    name.startsWith("com.google.common.collect.Immutable") ||
+                    name.startsWith("com.google.common.collect.Regular") ||
+                    name.startsWith("com.google.common.collect.Singleton");
+        }
+    };
+
+    private VerifiedCache() {
+        // no instances
+    }
+
+    /**
+     * Check whether a value has already passed a deep check.
+     *
+     * @param value
+     *            the value to check, not null
+     * @return true if the value is known to contain no null
+     */
+    static boolean isVerified(Object value) {
+        if(SIZE == 0) {
+            return false;
+        }
+        WeakReference<Object> ref = table[System.identityHashCode(value) & (SIZE - 1)];
+        return ref != null && ref.get() == value;
+    }
+
+    /**
+     * Remember that a value has passed a deep check. Values of mutable
+     * classes are ignored.
+     *
+     * @param value
+     *            the value which contains no null, not null
+     */
+    static void verified(Object value) {
+        if(SIZE == 0 || !IMMUTABLE.get(value.getClass())) {
+            return;
+        }
+        table[System.identityHashCode(value) & (SIZE - 1)] = new WeakReference<>(value);
+    }
+}
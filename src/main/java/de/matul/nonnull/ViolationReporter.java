@@ -0,0 +1,305 @@
+/*
+ * NonNull Runtime Checking for Methods
+ *
+ * 2009 by Mattias Ulbrich
+ *
+ * published under GPL.
+ */
+package de.matul.nonnull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import nonnull.NoNullnessChecks;
+import nonnull.Nullable;
+
+/**
+ * The reporter for violations in report mode (see
+ * {@link NonNullAgent#REPORT_FILE}). Violations are not thrown as
+ * {@link NonNullError} but written to a file, one JSON object per line.
+ *
+ * Violations are aggregated per check site: The violating thread only counts
+ * the violation and, if the site is not already pending, puts the site into a
+ * lock-free ring buffer (or, if that is full, into an overflow queue). A
+ * background thread drains the buffer and the queue once a second
+ * and writes one line per pending site with the number of violations since
+ * the last line and the times of the first and last violation. The messages
+ * are only built by the background thread.
+ *
+ * If the file exceeds {@link #MAX_FILE_SIZE} bytes, it is rotated: the
+ * previous files are kept with suffixes ".1" to ".3".
+ */
+@NoNullnessChecks
+final class ViolationReporter {
+
+    /**
+     * The maximum size of the report file before rotation. Can be set using
+     * the system property {@code de.matul.nonnull.report.maxsize}.
+     */
+    private static final long MAX_FILE_SIZE =
+            Long.getLong("de.matul.nonnull.report.maxsize", 10L << 20);
+
+    private static final int BACKUP_FILES = 3;
+
+    private static final long DRAIN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The capacity of the ring buffer, a power of two. Since sites are only
+     * enqueued once until drained, it only overflows if more sites than this
+     * are violated within one drain interval.
+     */
+    static final int CAPACITY = 4096;
+
+    private static final AtomicReferenceArray<Site> buffer =
+            new AtomicReferenceArray<>(CAPACITY);
+
+    /**
+     * The next slot to write to. Incremented by the producers.
+     */
+    private static final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next slot to read from. Only written by the background thread.
+     */
+    private static volatile long head;
+
+    /**
+     * The pending sites which did not fit into the ring buffer. Like in the
+     * buffer, every site is in here at most once.
+     */
+    private static final Queue<Site> overflow = new ConcurrentLinkedQueue<>();
+
+    static {
+        Thread drainer = new Thread(ViolationReporter::run, "NonNull violation reporter");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(ViolationReporter::drain, "NonNull violation reporter shutdown"));
+    }
+
+    private ViolationReporter() {
+        // no instances
+    }
+
+    /**
+     * A check site for which violations can be reported. The counters are
+     * only allocated upon the first violation.
+     */
+    abstract static class Site {
+
+        private static final VarHandle STATS;
+        private static final VarHandle PENDING;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                STATS = lookup.findVarHandle(Site.class, "stats", Stats.class);
+                PENDING = lookup.findVarHandle(Site.class, "pending", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new NonNullError("Error while initialising ViolationReporter", e);
+            }
+        }
+
+        private volatile @Nullable Stats stats;
+
+        /**
+         * 1 if the site is in the ring buffer.
+         */
+        private volatile int pending;
+
+        /**
+         * Build the message for a violation at this site.
+         *
+         * @param detail
+         *            the location of the embedded null value, null if the
+         *            value itself is null
+         * @return the message, the same as for the {@link NonNullError}
+         */
+        abstract String describe(@Nullable String detail);
+
+        private Stats getStats() {
+            Stats result = stats;
+            if(result == null) {
+                Stats fresh = new Stats();
+                result = (Stats) STATS.compareAndExchange(this, null, fresh);
+                if(result == null) {
+                    result = fresh;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Stats {
+        private final LongAdder count = new LongAdder();
+        private final long first = System.currentTimeMillis();
+        private volatile long last;
+        private volatile @Nullable String detail;
+        /** only accessed by the background thread */
+        private long total;
+    }
+
+    /**
+     * Report a violation at a check site.
+     *
+     * @param site
+     *            the violated site
+     * @param detail
+     *            the location of the embedded null value, null if the value
+     *            itself is null
+     */
+    static void report(Site site, @Nullable String detail) {
+        Stats stats = site.getStats();
+        stats.count.increment();
+        stats.last = System.currentTimeMillis();
+        if(detail != null) {
+            stats.detail = detail;
+        }
+
+        if(site.pending == 0 && Site.PENDING.compareAndSet(site, 0, 1)) {
+            if(!offer(site)) {
+                overflow.add(site);
+            }
+        }
+    }
+
+    private static boolean offer(Site site) {
+        while(true) {
+            long t = tail.get();
+            if(t - head >= CAPACITY) {
+                return false;
+            }
+            if(tail.compareAndSet(t, t + 1)) {
+                buffer.setRelease((int) t & (CAPACITY - 1), site);
+                return true;
+            }
+        }
+    }
+
+    private static void run() {
+        while(true) {
+            LockSupport.parkNanos(DRAIN_INTERVAL);
+            drain();
+        }
+    }
+
+    /*
+     * Write one line for every pending site.
+     */
+    private static synchronized void drain() {
+        StringBuilder sb = new StringBuilder();
+        long h = head;
+        while(h < tail.get()) {
+            int index = (int) h & (CAPACITY - 1);
+            Site site = buffer.getAcquire(index);
+            if(site == null) {
+                // claimed but not yet written
+                break;
+            }
+            buffer.set(index, null);
+            h++;
+            head = h;
+            drain(sb, site);
+        }
+
+        Site site;
+        while((site = overflow.poll()) != null) {
+            drain(sb, site);
+        }
+
+        if(sb.length() > 0) {
+            write(sb.toString());
+        }
+    }
+
+    /*
+     * The pending flag is reset before the count is taken such that later
+     * violations enqueue the site again.
+     */
+    private static void drain(StringBuilder sb, Site site) {
+        site.pending = 0;
+        Stats stats = site.getStats();
+        long count = stats.count.sumThenReset();
+        if(count == 0) {
+            return;
+        }
+        stats.total += count;
+        append(sb, site, stats, count);
+    }
+
+    private static void append(StringBuilder sb, Site site, Stats stats, long count) {
+        sb.append("{\"site\":");
+        appendString(sb, site.toString());
+        sb.append(",\"message\":");
+        appendString(sb, site.describe(stats.detail));
+        sb.append(",\"count\":").append(count);
+        sb.append(",\"total\":").append(stats.total);
+        sb.append(",\"first\":");
+        appendString(sb, Instant.ofEpochMilli(stats.first).toString());
+        sb.append(",\"last\":");
+        appendString(sb, Instant.ofEpochMilli(stats.last).toString());
+        sb.append("}\n");
+    }
+
+    private static void appendString(StringBuilder sb, String string) {
+        sb.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch(c) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if(c < ' ') {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void write(String lines) {
+        Path file = Paths.get(NonNullAgent.REPORT_FILE);
+        try {
+            if(Files.exists(file) && Files.size(file) > MAX_FILE_SIZE) {
+                rotate(file);
+            }
+            try(Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                w.write(lines);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write non-null violations to " + file + ": " + e);
+        }
+    }
+
+    private static void rotate(Path file) throws IOException {
+        for (int i = BACKUP_FILES - 1; i > 0; i--) {
+            Path from = Paths.get(file + "." + i);
+            if(Files.exists(from)) {
+                Files.move(from, Paths.get(file + "." + (i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -10,8 +10,10 @@ import java.lang.annotation.RetentionPolicy;
  *
  * If the annotation is used on an array over a reference type or over an
  * instance of the {@link Iterable} interface, the non-nullness check is
- * extended to each element of the collection. <i>Please note:</i> If the
- * content is a collection again, it is not null-checked. (Only depth 1)
+ * extended to each element of the collection. For a {@link java.util.Map},
+ * keys and values are checked. <i>Please note:</i> If the content is a
+ * collection again, it is not null-checked. (Only depth 1, unless the agent
+ * is configured to descend further.)
  *
  * If a class is annotated DeepNonNull, all parameters and returns to all
  * methods (and constructors!) are considered annotated DeepNonNull. You can
@@ -0,0 +1,143 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.matul.nonnull.test.TestMethodParams;
+import org.junit.Test;
+
+public class TestCheckSwitches {
+
+    private static final String PACKAGE = "de.matul.nonnull.test";
+
+    /*
+     * Pass null to a non-null parameter, true if the violation is detected.
+     */
+    private static boolean violates() throws Exception {
+        Method method = TestMethodParams.class.getDeclaredMethod("nonnull", Object.class);
+        method.setAccessible(true);
+        try {
+            method.invoke(new TestMethodParams(), (Object) null);
+            return false;
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof NonNullError);
+            return true;
+        }
+    }
+
+    // a package switch turns the checks off and on again
+    @Test
+    public void test1() throws Exception {
+        try {
+            assertTrue(violates());
+            CheckSwitches.setEnabled(PACKAGE, false);
+            assertFalse(violates());
+            assertFalse(violates());
+            CheckSwitches.setEnabled(PACKAGE, true);
+            assertTrue(violates());
+        } finally {
+            CheckSwitches.setEnabled(PACKAGE, true);
+        }
+    }
+
+    // the global switch overrides the package switches
+    @Test
+    public void test2() throws Exception {
+        try {
+            CheckSwitches.setEnabled(null, false);
+            assertFalse(violates());
+            CheckSwitches.setEnabled(PACKAGE, true);
+            assertFalse(violates());
+            CheckSwitches.setEnabled(null, true);
+            assertTrue(violates());
+        } finally {
+            CheckSwitches.setEnabled(null, true);
+        }
+    }
+
+    // setting a switch registers the MBean, through which the sites are relinked
+    @Test
+    public void test3() throws Exception {
+        CheckSwitches.setEnabled(PACKAGE, true);
+        CheckSwitches.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        CheckSwitchesMXBean bean = JMX.newMXBeanProxy(server,
+                new ObjectName(CheckSwitches.OBJECT_NAME), CheckSwitchesMXBean.class);
+        try {
+            bean.disablePackage(PACKAGE);
+            assertEquals(Collections.singletonList(PACKAGE), bean.getDisabledPackages());
+            assertFalse(violates());
+            bean.enablePackage(PACKAGE);
+            assertTrue(bean.getDisabledPackages().isEmpty());
+            assertTrue(violates());
+        } finally {
+            CheckSwitches.setEnabled(PACKAGE, true);
+        }
+    }
+
+    /**
+     * A site whose target tells whether checks are enabled.
+     */
+    private static class Site implements CheckSwitches.Site {
+        private final CheckSwitches.Switch packageSwitch;
+        private volatile MethodHandle target;
+
+        Site(CheckSwitches.Switch packageSwitch) {
+            this.packageSwitch = packageSwitch;
+            link();
+        }
+
+        @Override
+        public void link() {
+            target = CheckSwitches.guard(packageSwitch, this,
+                    MethodHandles.constant(boolean.class, true),
+                    MethodHandles.constant(boolean.class, false));
+        }
+
+        boolean isEnabled() throws Throwable {
+            return (boolean) target.invokeExact();
+        }
+    }
+
+    // sites linked while the switch is turned off and on are enabled in the end
+    @Test
+    public void test4() throws Throwable {
+        CheckSwitches.Switch packageSwitch = CheckSwitches.forClass("switches/test/Site");
+        List<Site> sites = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    sites.add(new Site(packageSwitch));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (int i = 0; i < 200; i++) {
+            CheckSwitches.setEnabled("switches.test", false);
+            CheckSwitches.setEnabled("switches.test", true);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8000, sites.size());
+        for (Site site : sites) {
+            assertTrue(site.isEnabled());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestCheckerMetrics {
+
+    private static CheckerMetricsMXBean metrics() throws Exception {
+        CheckerMetrics.register();
+        return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(CheckerMetrics.OBJECT_NAME), CheckerMetricsMXBean.class);
+    }
+
+    // the counts of a site are kept after it has been retired
+    @Test
+    public void test1() throws Exception {
+        CheckerMetricsMXBean metrics = metrics();
+        long sites = metrics.getSiteCount();
+        long resolved = metrics.getResolvedAtTransformationCount();
+        long executions = metrics.getExecutionCount();
+        long violations = metrics.getViolationCount();
+
+        CheckerMetrics.Counters counters =
+                CheckerMetrics.newCounters("metrics/test/Site", "metrics/test/Site.site");
+        assertEquals(sites, metrics.getSiteCount());
+        CheckerMetrics.addSite(counters, true);
+        counters.executions.add(3);
+        counters.violations.increment();
+
+        assertEquals(sites + 1, metrics.getSiteCount());
+        assertEquals(resolved + 1, metrics.getResolvedAtTransformationCount());
+        assertEquals(executions + 3, metrics.getExecutionCount());
+        assertEquals(violations + 1, metrics.getViolationCount());
+        assertEquals(Long.valueOf(3), metrics.getExecutionsPerPackage().get("metrics.test"));
+        assertTrue(metrics.topSites(Integer.MAX_VALUE).contains("metrics/test/Site.site 3 1"));
+
+        CheckerMetrics.retire(counters);
+        assertEquals(executions + 3, metrics.getExecutionCount());
+        assertEquals(violations + 1, metrics.getViolationCount());
+        assertEquals(Long.valueOf(3), metrics.getExecutionsPerPackage().get("metrics.test"));
+        assertEquals(Long.valueOf(1), metrics.getViolationsPerPackage().get("metrics.test"));
+        assertFalse(metrics.topSites(Integer.MAX_VALUE).contains("metrics/test/Site.site 3 1"));
+    }
+
+    // no sites for limits which are not positive
+    @Test
+    public void test2() throws Exception {
+        CheckerMetricsMXBean metrics = metrics();
+        CheckerMetrics.addSite(CheckerMetrics.newCounters("metrics/test/Top", "top"), false);
+        assertTrue(metrics.topSites(0).isEmpty());
+        assertTrue(metrics.topSites(-1).isEmpty());
+        assertEquals(1, metrics.topSites(1).size());
+    }
+
+    // runtime resolutions are counted in the histogram
+    @Test
+    public void test3() throws Exception {
+        CheckerMetricsMXBean metrics = metrics();
+        long count = metrics.getResolvedAtRuntimeCount();
+        long time = metrics.getResolutionTime();
+        long bucket = metrics.getResolutionLatencyHistogram()[11];
+        CheckerMetrics.resolved(
+                CheckerMetrics.newCounters("metrics/test/Late", "late"), 1500);
+        assertEquals(count + 1, metrics.getResolvedAtRuntimeCount());
+        assertEquals(time + 1500, metrics.getResolutionTime());
+        assertEquals(bucket + 1, metrics.getResolutionLatencyHistogram()[11]);
+    }
+
+    // a site resolved twice is resolved once, a retired site is not unresolved
+    @Test
+    public void test4() throws Exception {
+        CheckerMetricsMXBean metrics = metrics();
+        long unresolved = metrics.getUnresolvedCount();
+        long resolved = metrics.getResolvedAtRuntimeCount();
+
+        CheckerMetrics.Counters first =
+                CheckerMetrics.newCounters("metrics/test/Twice", "first");
+        CheckerMetrics.Counters second =
+                CheckerMetrics.newCounters("metrics/test/Twice", "second");
+        CheckerMetrics.addSite(first, false);
+        CheckerMetrics.addSite(second, false);
+        assertEquals(unresolved + 2, metrics.getUnresolvedCount());
+
+        CheckerMetrics.resolved(first, 100);
+        CheckerMetrics.resolved(first, 100);
+        assertEquals(unresolved + 1, metrics.getUnresolvedCount());
+        assertEquals(resolved + 1, metrics.getResolvedAtRuntimeCount());
+
+        CheckerMetrics.retire(second);
+        CheckerMetrics.retire(first);
+        assertEquals(unresolved, metrics.getUnresolvedCount());
+        assertEquals(resolved + 1, metrics.getResolvedAtRuntimeCount());
+    }
+}
@@ -0,0 +1,85 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestClassMatcher {
+
+    private static ClassMatcher compile(String... patterns) {
+        return ClassMatcher.compile(Arrays.asList(patterns));
+    }
+
+    // plain patterns are prefixes, in dotted or internal form
+    @Test
+    public void test1() {
+        ClassMatcher matcher = compile("com.acme.", "org/example/Main");
+        assertTrue(matcher.matches("com/acme/Foo"));
+        assertTrue(matcher.matches("com/acme/sub/Foo"));
+        assertTrue(matcher.matches("org/example/MainTest"));
+        assertFalse(matcher.matches("com/acmeX/Foo"));
+        assertFalse(matcher.matches("org/example/Other"));
+    }
+
+    // * stays within a package, ** crosses packages
+    @Test
+    public void test2() {
+        ClassMatcher single = compile("com.acme.*Service");
+        assertTrue(single.matches("com/acme/FooService"));
+        assertFalse(single.matches("com/acme/sub/FooService"));
+        assertFalse(single.matches("com/acme/FooServiceImpl"));
+
+        ClassMatcher multi = compile("com.acme.**Service");
+        assertTrue(multi.matches("com/acme/FooService"));
+        assertTrue(multi.matches("com/acme/sub/FooService"));
+        assertFalse(multi.matches("com/other/FooService"));
+    }
+
+    // ? is a single character within a package
+    @Test
+    public void test3() {
+        ClassMatcher matcher = compile("com.acme.V?");
+        assertTrue(matcher.matches("com/acme/V1"));
+        assertFalse(matcher.matches("com/acme/V12"));
+        assertFalse(matcher.matches("com/acme/V"));
+        assertFalse(matcher.matches("com/acme/V/"));
+    }
+
+    // excludes win over includes, in any order
+    @Test
+    public void test4() {
+        ClassMatcher matcher = compile("!com.acme.internal.", "com.acme.", "!**Test");
+        assertTrue(matcher.matches("com/acme/Foo"));
+        assertFalse(matcher.matches("com/acme/internal/Foo"));
+        assertFalse(matcher.matches("com/acme/FooTest"));
+
+        ClassMatcher nested = compile("com.acme.internal.", "!com.acme.");
+        assertFalse(nested.matches("com/acme/internal/Foo"));
+    }
+
+    // ALL includes every class, excludes still apply
+    @Test
+    public void test5() {
+        ClassMatcher matcher = compile("ALL", "!java.");
+        assertTrue(matcher.matches("Foo"));
+        assertTrue(matcher.matches("com/acme/Foo"));
+        assertFalse(matcher.matches("java/lang/String"));
+        assertFalse(compile().matches("com/acme/Foo"));
+    }
+
+    // generated classes are never matched
+    @Test
+    public void test6() {
+        ClassMatcher matcher = compile("ALL");
+        assertTrue(ClassMatcher.isGenerated("com/acme/Foo$$Lambda$12"));
+        assertTrue(ClassMatcher.isGenerated("com/acme/Foo$$EnhancerByCGLIB$$1a2b"));
+        assertTrue(ClassMatcher.isGenerated("com/sun/proxy/$Proxy12"));
+        assertFalse(ClassMatcher.isGenerated("com/acme/Foo$Proxy"));
+        assertFalse(matcher.matches("com/acme/Foo$$Lambda$12"));
+        assertFalse(matcher.matches("jdk/proxy1/$Proxy3"));
+        assertTrue(matcher.matches("com/acme/Foo$Inner"));
+    }
+}
@@ -0,0 +1,75 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+
+import nonnull.NonNull;
+import nonnull.Nullable;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+public class TestConstantPoolScan {
+
+    static class Plain {
+        Object field;
+
+        Object method(Object o) {
+            return field == null ? o : field;
+        }
+    }
+
+    static class OnlyNullable {
+        @Nullable Object method(@Nullable Object o) {
+            return o;
+        }
+    }
+
+    static class Annotated {
+        void method(@NonNull Object o) { }
+    }
+
+    static class AnnotatedField {
+        @NonNull Object field = "xxx";
+    }
+
+    static class Subclass extends Annotated {
+    }
+
+    static class FieldUser {
+        void method(AnnotatedField other) {
+            other.field = "xxx";
+        }
+    }
+
+    private static boolean mayNeedChecks(Class<?> clazz) throws Exception {
+        ClassLoader loader = TestConstantPoolScan.class.getClassLoader();
+        try(InputStream is = loader.getResourceAsStream(
+                clazz.getName().replace('.', '/') + ".class")) {
+            ClassReader reader = new ClassReader(Util.drainStream(is));
+            return ConstantPoolScan.mayNeedChecks(reader, new BytecodeResolver(loader, reader));
+        }
+    }
+
+    // classes without non-null annotations are skipped
+    @Test
+    public void test1() throws Exception {
+        assertFalse(mayNeedChecks(Plain.class));
+        assertFalse(mayNeedChecks(OnlyNullable.class));
+    }
+
+    // classes mentioning a non-null annotation are not skipped
+    @Test
+    public void test2() throws Exception {
+        assertTrue(mayNeedChecks(Annotated.class));
+        assertTrue(mayNeedChecks(AnnotatedField.class));
+    }
+
+    // neither are subclasses of and accessors to annotated classes
+    @Test
+    public void test3() throws Exception {
+        assertTrue(mayNeedChecks(Subclass.class));
+        assertTrue(mayNeedChecks(FieldUser.class));
+    }
+}
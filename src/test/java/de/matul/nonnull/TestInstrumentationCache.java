@@ -0,0 +1,111 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class TestInstrumentationCache {
+
+    private static final String NONNULL_PROPERTY = "de.matul.nonnull.annotation.nonnull";
+
+    private static final ClassLoader LOADER = TestInstrumentationCache.class.getClassLoader();
+
+    private static byte[] classFile() throws Exception {
+        try(InputStream is = LOADER.getResourceAsStream(
+                "de/matul/nonnull/test/TestInheritance.class")) {
+            return Util.drainStream(is);
+        }
+    }
+
+    /**
+     * Counts the class files read through it.
+     */
+    private static class CountingLoader extends ClassLoader {
+        int reads;
+
+        CountingLoader() {
+            super(LOADER);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            reads ++;
+            return super.getResourceAsStream(name);
+        }
+    }
+
+    private static NonNullEvents.Transform instrument(InstrumentationCache cache)
+            throws Exception {
+        return instrument(cache, LOADER);
+    }
+
+    private static NonNullEvents.Transform instrument(InstrumentationCache cache,
+            ClassLoader loader) throws Exception {
+        NonNullEvents.Transform event = new NonNullEvents.Transform();
+        assertNotNull(cache.instrument(loader, classFile(), event));
+        return event;
+    }
+
+    // the second instrumentation is taken from memory
+    @Test
+    public void test1() throws Exception {
+        assumeTrue(NonNullAgent.INDY);
+        InstrumentationCache cache = new InstrumentationCache(null);
+        NonNullEvents.Transform first = instrument(cache);
+        NonNullEvents.Transform second = instrument(cache);
+        assertFalse(first.cached);
+        assertTrue(second.cached);
+        assertEquals(first.checks, second.checks);
+    }
+
+    // additional annotation names lead to a different key
+    @Test
+    public void test2() throws Exception {
+        assumeTrue(NonNullAgent.INDY);
+        String directory = Files.createTempDirectory("nonnull-cache").toString();
+        assertFalse(instrument(new InstrumentationCache(directory)).cached);
+        assertTrue(instrument(new InstrumentationCache(directory)).cached);
+
+        String old = System.setProperty(NONNULL_PROPERTY, "some.NonNull");
+        try {
+            assertFalse(instrument(new InstrumentationCache(directory)).cached);
+            assertTrue(instrument(new InstrumentationCache(directory)).cached);
+        } finally {
+            if(old == null) {
+                System.clearProperty(NONNULL_PROPERTY);
+            } else {
+                System.setProperty(NONNULL_PROPERTY, old);
+            }
+        }
+    }
+
+    // the dependencies are read once per loader
+    @Test
+    public void test3() throws Exception {
+        assumeTrue(NonNullAgent.INDY);
+        InstrumentationCache cache = new InstrumentationCache(null);
+        assertFalse(instrument(cache).cached);
+
+        CountingLoader loader = new CountingLoader();
+        assertTrue(instrument(cache, loader).cached);
+        int reads = loader.reads;
+        assertTrue(reads > 0);
+        assertTrue(instrument(cache, loader).cached);
+        assertEquals(reads, loader.reads);
+
+        // the loader which instrumented the class has seen them already
+        InstrumentationCache fresh = new InstrumentationCache(null);
+        CountingLoader other = new CountingLoader();
+        assertFalse(instrument(fresh, other).cached);
+        reads = other.reads;
+        assertTrue(instrument(fresh, other).cached);
+        assertEquals(reads, other.reads);
+    }
+}
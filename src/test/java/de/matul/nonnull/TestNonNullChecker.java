@@ -0,0 +1,116 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
+
+public class TestNonNullChecker {
+
+    private static final String FIXTURE = "de.matul.nonnull.test.TestMethodParams";
+
+    /**
+     * Defines the fixture itself, everything else is loaded by the parent.
+     */
+    private static class FixtureLoader extends ClassLoader {
+        FixtureLoader() {
+            super(TestNonNullChecker.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(!name.equals(FIXTURE)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> result = findLoadedClass(name);
+                if(result == null) {
+                    try(InputStream is = getParent().getResourceAsStream(
+                            name.replace('.', '/') + ".class")) {
+                        byte[] data = Util.drainStream(is);
+                        result = defineClass(name, data, 0, data.length);
+                    } catch (Exception e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+
+    /*
+     * Load the fixture in a fresh loader and run a violating check.
+     */
+    private static void runFixture() throws Exception {
+        Class<?> clazz = new FixtureLoader().loadClass(FIXTURE);
+        Method method = clazz.getDeclaredMethod("nonnull", Object.class);
+        method.setAccessible(true);
+        try {
+            method.invoke(clazz.getConstructor().newInstance(), (Object) null);
+            throw new Error("XXX Should have failed!");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof NonNullError);
+            System.err.println("As expected: failed");
+        }
+    }
+
+    // the scope of a collected loader is reclaimed, its counts are kept
+    @Test
+    public void test1() throws Exception {
+        int before = NonNullChecker.getScopeCount();
+        runFixture();
+        assertEquals(before + 1, NonNullChecker.getScopeCount());
+        long violations = NonNullAgent.METRICS ? metrics().getViolationCount() : 0;
+
+        for (int i = 0; i < 100 && NonNullChecker.getScopeCount() > before; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue("scope reclaimed", NonNullChecker.getScopeCount() <= before);
+        if(NonNullAgent.METRICS) {
+            assertEquals(violations, metrics().getViolationCount());
+        }
+    }
+
+    private static CheckerMetricsMXBean metrics() throws Exception {
+        return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(CheckerMetrics.OBJECT_NAME), CheckerMetricsMXBean.class);
+    }
+
+    // the sites of one contract share their entry and strings
+    @Test
+    public void test2() {
+        ClassLoader loader = new ClassLoader(TestNonNullChecker.class.getClassLoader()) { };
+        NonNullChecker.IndexBlock block = new NonNullChecker.IndexBlock(loader);
+        NonNullChecker.registerArgumentCheck(block, "shared/Contract", "method",
+                "(Ljava/lang/Object;)V", 0, AnnotationType.NON_NULL);
+        long footprint = NonNullChecker.getScopeFootprint(loader);
+
+        for (int i = 0; i < 10; i++) {
+            // fresh copies of the strings
+            NonNullChecker.registerArgumentCheck(new NonNullChecker.IndexBlock(loader),
+                    new String("shared/Contract"), new String("method"),
+                    new String("(Ljava/lang/Object;)V"), 0, null);
+        }
+        assertEquals(footprint, NonNullChecker.getScopeFootprint(loader));
+
+        NonNullChecker.registerArgumentCheck(block, "shared/Contract", "method",
+                "(Ljava/lang/Object;)V", 1, AnnotationType.NON_NULL);
+        long entrySize = NonNullChecker.getScopeFootprint(loader) - footprint;
+        assertTrue(entrySize > 0);
+
+        NonNullChecker.registerReturnCheck(block, "shared/Contract", "method",
+                "(Ljava/lang/Object;)V", AnnotationType.NON_NULL);
+        assertEquals(footprint + 2 * entrySize, NonNullChecker.getScopeFootprint(loader));
+    }
+}
@@ -0,0 +1,111 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
+import de.matul.nonnull.test.TestMethodParams;
+import org.junit.Test;
+
+public class TestNonNullEvents {
+
+    private static final String FIXTURE = "de/matul/nonnull/test/TestMethodParams";
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    /*
+     * Record the events of the agent emitted while running an action.
+     */
+    private static List<RecordedEvent> record(String eventName, Action action)
+            throws Exception {
+        Path file = Files.createTempFile("nonnull", ".jfr");
+        try(Recording recording = new Recording()) {
+            recording.enable(eventName);
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> result = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if(event.getEventType().getName().equals(eventName)) {
+                    result.add(event);
+                }
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // a transformation reports the class and the inserted checks
+    @Test
+    public void test1() throws Exception {
+        ClassLoader loader = TestNonNullEvents.class.getClassLoader();
+        byte[] data;
+        try(InputStream is = loader.getResourceAsStream(FIXTURE + ".class")) {
+            data = Util.drainStream(is);
+        }
+        NonNullTransformer transformer = new NonNullTransformer(
+                ClassMatcher.compile(Collections.singletonList("ALL")),
+                new InstrumentationCache(null));
+        List<RecordedEvent> events = record("de.matul.nonnull.Transform",
+                () -> transformer.transform(loader, FIXTURE, null, null, data));
+
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertEquals(FIXTURE, event.getString("className"));
+        assertEquals(data.length, event.getInt("bytesIn"));
+        assertTrue(event.getInt("checks") > 0);
+        assertFalse(event.getBoolean("cached"));
+    }
+
+    // a runtime resolution reports the site and its annotation
+    @Test
+    public void test2() throws Exception {
+        NonNullResolver resolver = new NonNullResolver(TestNonNullEvents.class.getClassLoader());
+        List<RecordedEvent> events = record("de.matul.nonnull.Resolution",
+                () -> resolver.shouldCheckMethod(FIXTURE, "nonnull", "(Ljava/lang/Object;)V", 0));
+
+        assertEquals(1, events.size());
+        assertEquals(FIXTURE + ".nonnull(Ljava/lang/Object;)V/0",
+                events.get(0).getString("site"));
+        assertEquals(AnnotationType.NON_NULL.name(), events.get(0).getString("result"));
+    }
+
+    // a violation reports the site and the message
+    @Test
+    public void test3() throws Exception {
+        Method method = TestMethodParams.class.getDeclaredMethod("nonnull", Object.class);
+        method.setAccessible(true);
+        List<RecordedEvent> events = record("de.matul.nonnull.Violation", () -> {
+            try {
+                method.invoke(new TestMethodParams(), (Object) null);
+                throw new Error("XXX Should have failed!");
+            } catch (InvocationTargetException e) {
+                assertTrue(e.getCause() instanceof NonNullError);
+            }
+        });
+
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertTrue(event.getString("site").startsWith(FIXTURE + ".nonnull"));
+        assertTrue(event.getString("message").startsWith("null value in non-null parameter"));
+        assertFalse(event.getBoolean("reported"));
+    }
+}
@@ -0,0 +1,204 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+
+import nonnull.DeepNonNull;
+import nonnull.NonNull;
+import nonnull.Nullable;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import de.matul.nonnull.NonNullResolver.AnnotationType;
+
+public class TestNonNullResolver {
+
+    interface Contract {
+        @NonNull Object fromInterface(@NonNull Object o);
+    }
+
+    static class Base {
+        @NonNull Object baseField = "xxx";
+
+        @NonNull Object fromSuper(@NonNull Object o) {
+            return o;
+        }
+    }
+
+    static class Derived extends Base implements Contract {
+        Object ownField;
+        @Nullable Object nullableField;
+
+        @Override
+        Object fromSuper(Object o) {
+            return o;
+        }
+
+        @Override
+        public Object fromInterface(Object o) {
+            return o;
+        }
+
+        @DeepNonNull Object deep(@Nullable Object o) {
+            return new Object[0];
+        }
+    }
+
+    @NonNull
+    static class AllNonNull {
+        Object field;
+
+        Object method(Object o) {
+            return o;
+        }
+    }
+
+    private static final String GENERATED = "generated/Exploding";
+
+    /**
+     * Defines a class which is not visible to the application loader. Its
+     * static initialiser throws.
+     */
+    private static class GeneratedLoader extends ClassLoader {
+        GeneratedLoader() {
+            super(TestNonNullResolver.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if(!name.equals(GENERATED.replace('/', '.'))) {
+                throw new ClassNotFoundException(name);
+            }
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, GENERATED, null, "java/lang/Object", null);
+
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            mv.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalStateException");
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/IllegalStateException",
+                    "<init>", "()V", false);
+            mv.visitInsn(Opcodes.ATHROW);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "method",
+                    "(Ljava/lang/Object;)V", null, null);
+            mv.visitParameterAnnotation(0, "Lnonnull/NonNull;", true).visitEnd();
+            mv.visitCode();
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+            cw.visitEnd();
+
+            byte[] data = cw.toByteArray();
+            return defineClass(name, data, 0, data.length);
+        }
+    }
+
+    private static final String OBJECT_METHOD = "(Ljava/lang/Object;)Ljava/lang/Object;";
+
+    private static final NonNullResolver resolver =
+            new NonNullResolver(TestNonNullResolver.class.getClassLoader());
+
+    private static String desc(Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    // contracts are inherited from superclasses and interfaces
+    @Test
+    public void test1() {
+        String derived = desc(Derived.class);
+        assertEquals(AnnotationType.NON_NULL,
+                resolver.shouldCheckMethod(derived, "fromSuper", OBJECT_METHOD, 0));
+        assertEquals(AnnotationType.NON_NULL,
+                resolver.shouldCheckMethod(derived, "fromSuper", OBJECT_METHOD, -1));
+        assertEquals(AnnotationType.NON_NULL,
+                resolver.shouldCheckMethod(derived, "fromInterface", OBJECT_METHOD, 0));
+        assertEquals(AnnotationType.DEEP_NON_NULL,
+                resolver.shouldCheckMethod(derived, "deep", OBJECT_METHOD, -1));
+        assertEquals(AnnotationType.NULLABLE,
+                resolver.shouldCheckMethod(derived, "deep", OBJECT_METHOD, 0));
+    }
+
+    // fields are looked up in the summary, including inherited fields
+    @Test
+    public void test2() {
+        String derived = desc(Derived.class);
+        assertEquals(AnnotationType.NON_NULL, resolver.shouldCheckField(derived, "baseField"));
+        assertEquals(AnnotationType.NONE, resolver.shouldCheckField(derived, "ownField"));
+        assertEquals(AnnotationType.NULLABLE, resolver.shouldCheckField(derived, "nullableField"));
+        try {
+            resolver.shouldCheckField(derived, "noSuchField");
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+        }
+    }
+
+    // the class annotation applies to members without annotation
+    @Test
+    public void test3() {
+        String all = desc(AllNonNull.class);
+        assertEquals(AnnotationType.NON_NULL, resolver.shouldCheckField(all, "field"));
+        assertEquals(AnnotationType.NON_NULL,
+                resolver.shouldCheckMethod(all, "method", OBJECT_METHOD, 0));
+    }
+
+    // repeated resolutions use the cached summaries and agree
+    @Test
+    public void test4() {
+        String derived = desc(Derived.class);
+        NonNullResolver other = new NonNullResolver(TestNonNullResolver.class.getClassLoader());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(AnnotationType.NON_NULL,
+                    resolver.shouldCheckMethod(derived, "fromSuper", OBJECT_METHOD, 0));
+            assertEquals(AnnotationType.NON_NULL,
+                    other.shouldCheckMethod(derived, "fromSuper", OBJECT_METHOD, 0));
+            assertEquals(AnnotationType.NON_NULL, other.shouldCheckField(derived, "baseField"));
+        }
+    }
+
+    // classes are resolved through the loader of the site, not initialised
+    @Test
+    public void test5() throws Exception {
+        ClassLoader loader = new GeneratedLoader();
+        NonNullResolver generated = new NonNullResolver(loader);
+        assertEquals(AnnotationType.NON_NULL,
+                generated.shouldCheckMethod(GENERATED, "method", "(Ljava/lang/Object;)V", 0));
+        try {
+            Class.forName(GENERATED.replace('/', '.'), true, loader);
+            throw new Error("XXX Should have failed!");
+        } catch (ExceptionInInitializerError e) {
+            System.err.println("As expected: initialised only now");
+        }
+
+        try {
+            resolver.shouldCheckMethod(GENERATED, "method", "(Ljava/lang/Object;)V", 0);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+        }
+    }
+
+    // the resolver does not keep its loader reachable
+    @Test
+    public void test6() throws Exception {
+        ClassLoader loader = new GeneratedLoader();
+        NonNullResolver generated = new NonNullResolver(loader);
+        generated.shouldCheckMethod(GENERATED, "method", "(Ljava/lang/Object;)V", 0);
+        WeakReference<ClassLoader> ref = new WeakReference<>(loader);
+        loader = null;
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertEquals(AnnotationType.NON_NULL,
+                generated.shouldCheckMethod(GENERATED, "method", "(Ljava/lang/Object;)V", 0));
+    }
+}
@@ -0,0 +1,153 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nonnull.NonNull;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.junit.Test;
+
+public class TestNullnessAnalysis {
+
+    /**
+     * Instrumented by the test, not by the agent.
+     */
+    static class Fixture {
+        @NonNull Object field = "xxx";
+
+        void storeNew() {
+            field = new Object();
+        }
+
+        void storeConstant() {
+            field = "xxx";
+        }
+
+        void storeParam(@NonNull Object o) {
+            field = o;
+        }
+
+        @NonNull Object returnThis() {
+            return this;
+        }
+
+        @NonNull Object returnParam(@NonNull Object o) {
+            return o;
+        }
+
+        @NonNull Object returnField() {
+            return field;
+        }
+
+        Object plainField;
+
+        Object storePlain() {
+            plainField = new Object();
+            return plainField;
+        }
+    }
+
+    private static final List<String> siteTable = instrument();
+
+    private static List<String> instrument() {
+        List<String> result = new ArrayList<>();
+        ClassLoader loader = TestNullnessAnalysis.class.getClassLoader();
+        try(InputStream is = loader.getResourceAsStream(
+                Fixture.class.getName().replace('.', '/') + ".class")) {
+            NonNullTransformer.instrument(loader, Util.drainStream(is), result);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return result;
+    }
+
+    /*
+     * The check of a site (see NonNullChecker.bootstrapCheck) inserted into a
+     * method, null if there is none.
+     */
+    private static String check(String method, int paramNumber) {
+        for (String line : siteTable) {
+            String[] columns = line.split("\t");
+            if(columns[1].startsWith(method + "(") &&
+                    columns[5].equals(Integer.toString(paramNumber))) {
+                return columns[6];
+            }
+        }
+        return null;
+    }
+
+    private static boolean isChecked(String method, int paramNumber) {
+        return check(method, paramNumber) != null;
+    }
+
+    /*
+     * Only checks resolved at transformation time can be left out.
+     */
+    private static boolean isResolvedCheck(String method, int paramNumber) {
+        return "NON_NULL".equals(check(method, paramNumber));
+    }
+
+    // values which are certainly not null are not checked
+    @Test
+    public void test1() {
+        assumeTrue(NonNullAgent.ELIDE && !NonNullAgent.BOUNDARY);
+        assertFalse(isResolvedCheck("storeNew", -2));
+        assertFalse(isResolvedCheck("storeConstant", -2));
+        assertFalse(isResolvedCheck("returnThis", -1));
+    }
+
+    // parameters are checked on entry, but that check may not throw
+    @Test
+    public void test2() {
+        assumeTrue(!NonNullAgent.BOUNDARY);
+        assertTrue(isChecked("storeParam", 0));
+        assertTrue(isChecked("storeParam", -2));
+        assertTrue(isChecked("returnParam", 0));
+        assertTrue(isChecked("returnParam", -1));
+    }
+
+    // values read from fields may be null
+    @Test
+    public void test3() {
+        assumeTrue(!NonNullAgent.BOUNDARY);
+        assertTrue(isChecked("returnField", -1));
+    }
+
+    // the constant stored by the initialiser is not checked
+    @Test
+    public void test4() {
+        assumeTrue(NonNullAgent.ELIDE && !NonNullAgent.BOUNDARY);
+        assertFalse(isResolvedCheck("<init>", -2));
+    }
+
+    // methods without a resolved non-null site are not analysed
+    @Test
+    public void test5() throws IOException {
+        assumeTrue(!NonNullAgent.BOUNDARY && "NON_NULL".equals(check("returnParam", -1)));
+        ClassLoader loader = TestNullnessAnalysis.class.getClassLoader();
+        ClassReader reader;
+        try(InputStream is = loader.getResourceAsStream(
+                Fixture.class.getName().replace('.', '/') + ".class")) {
+            reader = new ClassReader(Util.drainStream(is));
+        }
+        ClassNode node = new ClassNode();
+        reader.accept(node, 0);
+        NonNullClassVisitor visitor = new NonNullClassVisitor(
+                new ClassWriter(0), new BytecodeResolver(loader, reader));
+        visitor.visit(node.version, node.access, node.name, null, node.superName, null);
+        for (MethodNode method : node.methods) {
+            boolean expected = !method.name.equals("storePlain");
+            assertEquals(method.name, expected, visitor.hasElidableSite(method, true));
+        }
+    }
+}
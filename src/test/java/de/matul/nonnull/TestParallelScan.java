@@ -0,0 +1,85 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestParallelScan {
+
+    private static final int SIZE = 100_000;
+
+    /*
+     * Run the deep check with the given settings.
+     */
+    private static String findNull(Object value, int parallelism, int threshold) {
+        int oldParallelism = NonNullAgent.PARALLELISM;
+        int oldThreshold = NonNullAgent.PARALLEL_THRESHOLD;
+        try {
+            NonNullAgent.PARALLELISM = parallelism;
+            NonNullAgent.PARALLEL_THRESHOLD = threshold;
+            return DeepCheckers.findNull(value);
+        } finally {
+            NonNullAgent.PARALLELISM = oldParallelism;
+            NonNullAgent.PARALLEL_THRESHOLD = oldThreshold;
+        }
+    }
+
+    // only large values are scanned in parallel
+    @Test
+    public void test1() {
+        int parallelism = NonNullAgent.PARALLELISM;
+        int threshold = NonNullAgent.PARALLEL_THRESHOLD;
+        try {
+            NonNullAgent.PARALLELISM = 4;
+            NonNullAgent.PARALLEL_THRESHOLD = 100;
+            assertFalse(ParallelScan.applies(99));
+            assertTrue(ParallelScan.applies(100));
+            assertNotNull(ParallelScan.spliterator(new ArrayList<>(Arrays.asList(new Object[100]))));
+            // the size of the splits is not known
+            Set<Integer> set = new HashSet<>();
+            for (int i = 0; i < 100; i++) {
+                set.add(i);
+            }
+            assertNull(ParallelScan.spliterator(set));
+            NonNullAgent.PARALLELISM = 1;
+            assertFalse(ParallelScan.applies(100));
+        } finally {
+            NonNullAgent.PARALLELISM = parallelism;
+            NonNullAgent.PARALLEL_THRESHOLD = threshold;
+        }
+    }
+
+    // the parallel scan reports the first null, as the sequential one does
+    @Test
+    public void test2() {
+        Object[] array = new Object[SIZE];
+        Arrays.fill(array, "xxx");
+        array[SIZE - 10] = null;
+        array[70_000] = null;
+        List<Object> list = new ArrayList<>(Arrays.asList(array));
+
+        assertEquals("array index [70000]", findNull(array, 1, Integer.MAX_VALUE));
+        assertEquals("array index [70000]", findNull(array, 4, 1000));
+        assertEquals(findNull(list, 1, Integer.MAX_VALUE), findNull(list, 4, 1000));
+        assertEquals(70_000, ParallelScan.indexOfNull(Arrays.spliterator(array)));
+    }
+
+    // no null, no result
+    @Test
+    public void test3() {
+        Object[] array = new Object[SIZE];
+        Arrays.fill(array, "xxx");
+        assertNull(findNull(array, 4, 1000));
+        assertEquals(-1, ParallelScan.indexOfNull(Arrays.spliterator(array)));
+    }
+}
@@ -0,0 +1,95 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class TestTransitiveScan {
+
+    // nested nulls are found up to the depth
+    @Test
+    public void test1() {
+        Object[][] array = { { "xxx" }, { "xxx", null } };
+        assertNull(TransitiveScan.findNull(array, 1));
+        assertEquals("array index [1][1]", TransitiveScan.findNull(array, 2));
+
+        List<Object> inner = new ArrayList<>();
+        inner.add(null);
+        List<List<Object>> middle = Collections.singletonList(inner);
+        List<List<List<Object>>> outer = Collections.singletonList(middle);
+        assertNull(TransitiveScan.findNull(outer, 2));
+        assertEquals("iteration index [0][0][0]", TransitiveScan.findNull(outer, 3));
+    }
+
+    // the paths into maps and optionals
+    @Test
+    public void test2() {
+        assertEquals("map entry [0][0]", TransitiveScan.findNull(
+                Collections.singletonMap("key", Arrays.asList((Object) null)), 2));
+        Map<Object, Object> map = new LinkedHashMap<>();
+        map.put("key", "value");
+        map.put(Arrays.asList((Object) null), "value");
+        assertEquals("map entry {1}[0]", TransitiveScan.findNull(map, 2));
+        assertEquals("optional.get()[0]",
+                TransitiveScan.findNull(Optional.of(new Object[1]), 2));
+        assertNull(TransitiveScan.findNull(Optional.empty(), 2));
+    }
+
+    // cycles are visited once
+    @Test
+    public void test3() {
+        Object[] array = new Object[2];
+        array[0] = array;
+        array[1] = "xxx";
+        assertNull(TransitiveScan.findNull(array, 100));
+
+        List<Object> list = new ArrayList<>();
+        list.add(list);
+        list.add(Arrays.asList(list, null));
+        assertEquals("iteration index [1][1]", TransitiveScan.findNull(list, 100));
+    }
+
+    // the check passes once the budget is exhausted
+    @Test
+    public void test4() {
+        Object[][] array = new Object[5][5];
+        for (Object[] row : array) {
+            Arrays.fill(row, "xxx");
+        }
+        array[4][4] = null;
+        int budget = NonNullAgent.DEEP_BUDGET;
+        try {
+            NonNullAgent.DEEP_BUDGET = 29;
+            assertNull(TransitiveScan.findNull(array, 2));
+            NonNullAgent.DEEP_BUDGET = 30;
+            assertEquals("array index [4][4]", TransitiveScan.findNull(array, 2));
+        } finally {
+            NonNullAgent.DEEP_BUDGET = budget;
+        }
+    }
+
+    // descending into the elements of a wide container is charged as well
+    @Test
+    public void test5() {
+        List<Object> wide = new ArrayList<>(Collections.nCopies(100, "xxx"));
+        wide.add(Arrays.asList((Object) null));
+        int budget = NonNullAgent.DEEP_BUDGET;
+        try {
+            NonNullAgent.DEEP_BUDGET = 100;
+            assertNull(TransitiveScan.findNull(wide, 2));
+            NonNullAgent.DEEP_BUDGET = 102;
+            assertEquals("iteration index [100][0]", TransitiveScan.findNull(wide, 2));
+        } finally {
+            NonNullAgent.DEEP_BUDGET = budget;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestVerifiedCache {
+
+    private static final boolean ENABLED =
+            Integer.getInteger("de.matul.nonnull.deepcache", 1024) > 0;
+
+    // immutable values are remembered
+    @Test
+    public void test1() {
+        assumeTrue(ENABLED);
+        List<String> value = List.of("xxx");
+        assertFalse(VerifiedCache.isVerified(value));
+        VerifiedCache.verified(value);
+        assertTrue(VerifiedCache.isVerified(value));
+        assertFalse(VerifiedCache.isVerified(List.of("xxx")));
+    }
+
+    // mutable values and unmodifiable views are not remembered
+    @Test
+    public void test2() {
+        List<String> list = new ArrayList<>();
+        list.add("xxx");
+        VerifiedCache.verified(list);
+        assertFalse(VerifiedCache.isVerified(list));
+
+        List<String> view = Collections.unmodifiableList(list);
+        VerifiedCache.verified(view);
+        assertFalse(VerifiedCache.isVerified(view));
+    }
+
+    // entries are overwritten on collision
+    @Test
+    public void test3() {
+        assumeTrue(ENABLED);
+        List<Integer> first = List.of(-1);
+        VerifiedCache.verified(first);
+        assertTrue(VerifiedCache.isVerified(first));
+        for (int i = 0; i < 100_000; i++) {
+            VerifiedCache.verified(List.of(i));
+        }
+        assertFalse(VerifiedCache.isVerified(first));
+    }
+}
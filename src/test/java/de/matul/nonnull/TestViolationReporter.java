@@ -0,0 +1,56 @@
+package de.matul.nonnull;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import nonnull.Nullable;
+import org.junit.Test;
+
+public class TestViolationReporter {
+
+    private static class Site extends ViolationReporter.Site {
+        private final int number;
+
+        Site(int number) {
+            this.number = number;
+        }
+
+        @Override
+        String describe(@Nullable String detail) {
+            return "violation";
+        }
+
+        @Override
+        public String toString() {
+            return "reporter/test/Site" + number;
+        }
+    }
+
+    // sites which do not fit into the ring buffer are reported as well
+    @Test
+    public void test1() throws Exception {
+        Path file = Files.createTempFile("nonnull-report", ".json");
+        String reportFile = NonNullAgent.REPORT_FILE;
+        int count = 3 * ViolationReporter.CAPACITY;
+        try {
+            NonNullAgent.REPORT_FILE = file.toString();
+            for (int i = 0; i < count; i++) {
+                ViolationReporter.report(new Site(i), null);
+            }
+
+            // the report is written by a background thread once a second
+            List<String> lines = Files.readAllLines(file);
+            for (int i = 0; i < 100 && lines.size() < count; i++) {
+                Thread.sleep(100);
+                lines = Files.readAllLines(file);
+            }
+            assertEquals(count, lines.size());
+        } finally {
+            NonNullAgent.REPORT_FILE = reportFile;
+            Files.deleteIfExists(file);
+        }
+    }
+}
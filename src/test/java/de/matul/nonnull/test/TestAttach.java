@@ -0,0 +1,97 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+
+import javax.management.ObjectName;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import de.matul.nonnull.NonNullError;
+import nonnull.NonNull;
+import org.junit.Test;
+
+/**
+ * Attaches the agent to a VM started without it, and turns it off again.
+ */
+public class TestAttach {
+
+    public static class Fixture {
+        static void nonnull(@NonNull Object o) { }
+    }
+
+    /**
+     * Run in the other VM with the path of the agent jar as argument. Exits
+     * with 0 iff the checks are only active while the agent is attached.
+     */
+    public static class Main {
+        private static boolean violates() {
+            try {
+                Fixture.nonnull(null);
+                return false;
+            } catch (NonNullError e) {
+                return true;
+            }
+        }
+
+        public static void main(String[] args) throws Exception {
+            String jar = args[0];
+            if(violates()) {
+                System.exit(1);
+            }
+
+            VirtualMachine vm = VirtualMachine.attach(Long.toString(ProcessHandle.current().pid()));
+            try {
+                vm.loadAgent(jar, "de.matul.nonnull.test.");
+                if(!violates()) {
+                    System.exit(2);
+                }
+                // metrics turned on after the checker has been initialised
+                vm.loadAgent(jar, "METRICS");
+                if(!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                        new ObjectName("de.matul.nonnull:type=CheckerMetrics"))) {
+                    System.exit(4);
+                }
+                // the pattern is ignored
+                vm.loadAgent(jar, "OFF,de.matul.nonnull.test.");
+                if(violates()) {
+                    System.exit(3);
+                }
+            } finally {
+                vm.detach();
+            }
+            System.exit(0);
+        }
+    }
+
+    /*
+     * The agent jar this VM has been started with, null if none.
+     */
+    private static String agentJar() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if(arg.startsWith("-javaagent:")) {
+                String jar = arg.substring("-javaagent:".length());
+                int options = jar.indexOf('=');
+                return options < 0 ? jar : jar.substring(0, options);
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void test1() throws Exception {
+        String jar = agentJar();
+        assumeTrue(jar != null);
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classpath = jar + File.pathSeparator + System.getProperty("java.class.path");
+        Process process = new ProcessBuilder(java, "-Djdk.attach.allowAttachSelf=true",
+                "-cp", classpath, Main.class.getName(), jar).inheritIO().start();
+        assertEquals("checks only while attached", 0, process.waitFor());
+        System.err.println("As expected: failed while attached");
+    }
+}
@@ -0,0 +1,85 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assume.assumeTrue;
+
+import de.matul.nonnull.NonNullAgent;
+import de.matul.nonnull.NonNullError;
+import nonnull.NonNull;
+import org.junit.Test;
+
+/**
+ * Checks at class boundaries. Only run with the agent argument "BOUNDARY".
+ */
+public class TestBoundary extends TestSuperclass {
+
+    private @NonNull Object own = "xxx";
+
+    public void publicMethod(@NonNull Object o) { }
+    private void privateMethod(@NonNull Object o) { }
+
+    public @NonNull Object publicResult() {
+        return null;
+    }
+
+    private @NonNull Object privateResult() {
+        return null;
+    }
+
+    @Test
+    public void test1() {
+        assumeTrue(NonNullAgent.BOUNDARY);
+        privateMethod(null);
+        privateResult();
+        own = null;
+        System.err.println("As expected: not failed");
+    }
+
+    @Test
+    public void test2() {
+        assumeTrue(NonNullAgent.BOUNDARY);
+        try {
+            publicMethod(null);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void test3() {
+        assumeTrue(NonNullAgent.BOUNDARY);
+        try {
+            publicResult();
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    // the field is accessed through this class but declared in the superclass
+    @Test
+    public void test4() {
+        assumeTrue(NonNullAgent.BOUNDARY);
+        try {
+            fieldInSuper = null;
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void test5() {
+        assumeTrue(NonNullAgent.BOUNDARY);
+        try {
+            new TestFields().nonnull = null;
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+}
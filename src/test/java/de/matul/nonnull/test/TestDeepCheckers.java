@@ -0,0 +1,97 @@
+package de.matul.nonnull.test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import de.matul.nonnull.DeepChecker;
+import de.matul.nonnull.NonNullError;
+import nonnull.DeepNonNull;
+import nonnull.NoNullnessChecks;
+import nonnull.Nullable;
+import org.junit.Test;
+
+public class TestDeepCheckers {
+
+    /**
+     * A type checked by the plugged in {@link BoxChecker}.
+     */
+    public static class Box {
+        final Object content;
+
+        Box(Object content) {
+            this.content = content;
+        }
+    }
+
+    /**
+     * Registered in META-INF/services/de.matul.nonnull.DeepChecker.
+     */
+    @NoNullnessChecks
+    public static class BoxChecker implements DeepChecker {
+        @Override
+        public boolean appliesTo(Class<?> type) {
+            return type == Box.class;
+        }
+
+        @Override
+        public @Nullable String findNull(Object value) {
+            return ((Box) value).content == null ? "empty box" : null;
+        }
+    }
+
+    void deepnonnull(@DeepNonNull Object o) { }
+
+    @Test
+    public void test1() {
+        deepnonnull(Optional.empty());
+        deepnonnull(Optional.of("xxx"));
+        deepnonnull(Collections.singletonMap("key", "value"));
+        deepnonnull(new Box("xxx"));
+        System.err.println("As expected: not failed");
+    }
+
+    @Test
+    public void test2() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("key", null);
+        try {
+            deepnonnull(map);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void test3() {
+        try {
+            deepnonnull(new Box(null));
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    // the key is not printed in the violation
+    @Test
+    public void test4() {
+        Map<Object, Object> map = new HashMap<>();
+        map.put(new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException();
+            }
+        }, null);
+        try {
+            deepnonnull(map);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.matul.nonnull.DynamicArray;
+import org.junit.Test;
+
+public class TestDynamicArray {
+
+    @Test
+    public void testSparse() {
+        DynamicArray<Integer> array = new DynamicArray<>(3);
+        int[] indices = { 0, 1, 3, 4, 7, 8, 1000, 123456, Integer.MAX_VALUE };
+        for (int index : indices) {
+            assertNull(array.get(index));
+            array.put(index, index);
+        }
+        for (int index : indices) {
+            assertEquals((Integer) index, array.get(index));
+        }
+        assertNull(array.get(2));
+        assertNull(array.get(Integer.MAX_VALUE - 1));
+
+        array.remove(1000);
+        assertNull(array.get(1000));
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        DynamicArray<Integer> array = new DynamicArray<>();
+        AtomicInteger counter = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int index = counter.getAndIncrement();
+                    array.put(index, index);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < counter.get(); i++) {
+            assertEquals((Integer) i, array.get(i));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package de.matul.nonnull.test;
+
+import de.matul.nonnull.NonNullError;
+import org.junit.Test;
+
+public class TestInheritance extends TestSuperclass implements TestInterface {
+
+    private Object result;
+
+    @Override
+    public Object method(int x, int[] y, String z) {
+        return result;
+    }
+
+    @Test
+    public void test1() {
+        result = "xxx";
+        method(0, null, null);
+        defaultFieldInSuper = null;
+        fieldInSuper = "xxx";
+    }
+
+    @Test
+    public void test2() {
+        try {
+            result = null;
+            method(0, null, null);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void test3() {
+        try {
+            fieldInSuper = null;
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import de.matul.nonnull.NonNullAgent;
+import de.matul.nonnull.NonNullError;
+import de.matul.nonnull.NonNullOffline;
+import nonnull.NonNull;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Instruments a class with {@link NonNullOffline} and runs it in a VM
+ * without the agent.
+ */
+public class TestOffline {
+
+    /**
+     * Run in the other VM, exits with 0 iff the violation is detected.
+     */
+    public static class Main {
+        static void nonnull(@NonNull Object o) { }
+
+        public static void main(String[] args) {
+            try {
+                nonnull(null);
+                System.exit(1);
+            } catch (NonNullError e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+        }
+    }
+
+    @Test
+    public void test1() throws Exception {
+        String resource = Main.class.getName().replace('.', '/') + ".class";
+        Path input = Files.createTempDirectory("nonnull-in");
+        Path output = Files.createTempDirectory("nonnull-out");
+        try(InputStream is = TestOffline.class.getClassLoader().getResourceAsStream(resource)) {
+            Path file = input.resolve(resource);
+            Files.createDirectories(file.getParent());
+            Files.copy(is, file);
+        }
+
+        // only invokedynamic sites work without the agent
+        boolean indy = NonNullAgent.INDY;
+        NonNullAgent.INDY = true;
+        try(URLClassLoader loader = new URLClassLoader(new URL[] { input.toUri().toURL() },
+                TestOffline.class.getClassLoader())) {
+            new NonNullOffline(Collections.singletonList("de/matul/nonnull/test/"), loader, 1)
+                    .instrument(input, output);
+        } finally {
+            NonNullAgent.INDY = indy;
+        }
+
+        String classpath = output + File.pathSeparator + location(NonNullAgent.class) +
+                File.pathSeparator + location(ClassReader.class) +
+                File.pathSeparator + System.getProperty("java.class.path");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", classpath, Main.class.getName())
+                .inheritIO().start();
+        assertEquals("violation detected without the agent", 0, process.waitFor());
+        System.err.println("As expected: failed");
+    }
+
+    private static String location(Class<?> clazz) throws Exception {
+        return Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .toString();
+    }
+}
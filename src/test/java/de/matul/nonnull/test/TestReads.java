@@ -0,0 +1,100 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assume.assumeTrue;
+
+import de.matul.nonnull.NonNullAgent;
+import de.matul.nonnull.NonNullError;
+import nonnull.DeepNonNull;
+import nonnull.NonNull;
+import org.junit.Test;
+
+/**
+ * Checks of values read from non-null fields. Only run with the agent
+ * argument "READS".
+ */
+public class TestReads {
+
+    private static class Holder {
+        // never assigned, hence null
+        @NonNull Object field;
+        @NonNull Object assigned = "xxx";
+        @DeepNonNull Object[] deep = { "xxx" };
+    }
+
+    private static Object read(Holder holder) {
+        return holder.field;
+    }
+
+    private static Object readAfterJoin(boolean c, Holder a, Holder b) {
+        Object first = (c ? a : b).assigned;
+        return b.assigned;
+    }
+
+    @Test
+    public void test1() {
+        assumeTrue(NonNullAgent.READS);
+        try {
+            read(new Holder());
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void test2() {
+        assumeTrue(NonNullAgent.READS);
+        Holder a = new Holder();
+        Holder b = new Holder();
+        readAfterJoin(true, a, b);
+        readAfterJoin(false, a, b);
+        System.err.println("As expected: not failed");
+    }
+
+    // the read after a join must not be attributed to the last loaded variable
+    @Test
+    public void test3() {
+        assumeTrue(NonNullAgent.READS);
+        Holder a = new Holder();
+        Holder b = new Holder();
+        try {
+            setNull(b);
+            readAfterJoin(true, a, b);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    // values read from deep non-null fields are checked deeply
+    @Test
+    public void test4() {
+        assumeTrue(NonNullAgent.READS);
+        Holder holder = new Holder();
+        holder.deep[0] = null;
+        try {
+            readDeep(holder);
+            throw new Error("XXX Should have failed!");
+        } catch (NonNullError e) {
+            System.err.println("As expected: failed");
+            e.printStackTrace();
+        }
+    }
+
+    private static Object readDeep(Holder holder) {
+        return holder.deep;
+    }
+
+    /*
+     * Reflection bypasses the store check.
+     */
+    private static void setNull(Holder holder) {
+        try {
+            Holder.class.getDeclaredField("assigned").set(holder, null);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+}
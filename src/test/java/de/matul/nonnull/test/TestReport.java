@@ -0,0 +1,44 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import de.matul.nonnull.NonNullAgent;
+import nonnull.NonNull;
+import org.junit.Test;
+
+public class TestReport {
+
+    void nonnull(@NonNull Object o) { }
+
+    // violations are written to the report file instead of being thrown
+    @Test
+    public void test1() throws Exception {
+        Path file = Files.createTempFile("nonnull-report", ".json");
+        String reportFile = NonNullAgent.REPORT_FILE;
+        try {
+            NonNullAgent.REPORT_FILE = file.toString();
+            for (int i = 0; i < 3; i++) {
+                nonnull(null);
+            }
+
+            // the report is written by a background thread once a second
+            String report = "";
+            for (int i = 0; i < 100 && !report.contains("\"total\":3"); i++) {
+                Thread.sleep(100);
+                report = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            }
+            System.err.print(report);
+            assertTrue(report.contains("\"total\":3"));
+            assertTrue(report.contains(
+                    "null value in non-null parameter number 1 in method " +
+                    TestReport.class.getName() + ".nonnull(java.lang.Object)"));
+        } finally {
+            NonNullAgent.REPORT_FILE = reportFile;
+            Files.deleteIfExists(file);
+        }
+    }
+}
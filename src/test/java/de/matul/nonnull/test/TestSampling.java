@@ -0,0 +1,59 @@
+package de.matul.nonnull.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import de.matul.nonnull.NonNullAgent;
+import de.matul.nonnull.NonNullError;
+import nonnull.NonNull;
+import org.junit.Test;
+
+public class TestSampling {
+
+    void sampled(@NonNull Object o) { }
+    void unsampled(@NonNull Object o) { }
+
+    private int violations(boolean sampled, int runs) {
+        int result = 0;
+        for (int i = 0; i < runs; i++) {
+            try {
+                if(sampled) {
+                    sampled(null);
+                } else {
+                    unsampled(null);
+                }
+            } catch (NonNullError e) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    // every check is run without sampling
+    @Test
+    public void test1() {
+        int rate = NonNullAgent.SAMPLE_RATE;
+        try {
+            NonNullAgent.SAMPLE_RATE = 1;
+            assertEquals(100, violations(false, 100));
+            System.err.println("As expected: failed");
+        } finally {
+            NonNullAgent.SAMPLE_RATE = rate;
+        }
+    }
+
+    // about every tenth check is run with rate 10; the sites are linked
+    // after the rate has been set
+    @Test
+    public void test2() {
+        int rate = NonNullAgent.SAMPLE_RATE;
+        try {
+            NonNullAgent.SAMPLE_RATE = 10;
+            int violations = violations(true, 1000);
+            assertTrue("sampled violations: " + violations, violations >= 20 && violations <= 400);
+            System.err.println("As expected: failed " + violations + " times");
+        } finally {
+            NonNullAgent.SAMPLE_RATE = rate;
+        }
+    }
+}